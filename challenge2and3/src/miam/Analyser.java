@@ -0,0 +1,660 @@
+package miam;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The Analyser looks for performance hazards in a parsed file without running it. It keeps an upper
+ * bound on every variable in terms of the parameters of the function it is in, so every while loop
+ * is assumed to run as many times as the bound of its variable when the loop is reached. This gives
+ * a worst-case estimate of how much work each loop and function does and which variables grow with
+ * the parameters, while loops bounded by a constant only cost a constant amount of work. Loops
+ * whose variable is never decremented are flagged as they will most likely never finish. Every
+ * function is analysed once on its own, in the order they are defined.
+ */
+public class Analyser {
+  private static final String MAIN = "<main>";
+  // Loops that run a constant number of times are followed pass by pass up to this many passes, so
+  // a variable that is doubled by every pass is still bounded.
+  private static final int MAX_UNROLLED = 64;
+
+  private final Parser parser;
+  private final List<FuncBlock> functions = new ArrayList<>();
+  private final Map<String, Set<String>> callGraph = new LinkedHashMap<>();
+  private final Map<FuncBlock, Summary> summaries = new HashMap<>();
+  private final Set<FuncBlock> visiting = new HashSet<>();
+  private final List<Loop> loops = new ArrayList<>();
+  private final List<String> warnings = new ArrayList<>();
+  private final List<String> growth = new ArrayList<>();
+  private Summary program;
+
+  public Analyser(Parser Parser) {
+    parser = Parser;
+  }
+
+  /** Writes the analysis of the parsed file into the given report file. */
+  public static void report(Parser parser, String file) throws IOException {
+    Analyser analyser = new Analyser(parser);
+    analyser.analyse();
+    FileWriter fileWriter = new FileWriter(file);
+    analyser.write(fileWriter);
+    fileWriter.close();
+  }
+
+  public void analyse() {
+    // A function can only call the functions defined before it, so they are always analysed first.
+    functions.addAll(parser.Functions.values());
+    functions.sort(Comparator.comparingInt(function -> function.lineNumber));
+    for (FuncBlock function : functions) {
+      callGraph.put(function.name, new LinkedHashSet<>());
+    }
+    callGraph.put(MAIN, new LinkedHashSet<>());
+    for (FuncBlock function : functions) {
+      summary(function);
+    }
+    program = analyse(parser.Group, MAIN);
+  }
+
+  public void write(Writer writer) throws IOException {
+    writer.write("Call graph:\n");
+    for (Map.Entry<String, Set<String>> entry : callGraph.entrySet()) {
+      String callees = entry.getValue().isEmpty() ? "(none)" : String.join(", ", entry.getValue());
+      writer.write("    " + entry.getKey() + " -> " + callees + "\n");
+    }
+    writer.write("\nEstimated cost:\n");
+    for (FuncBlock function : functions) {
+      writer.write("    " + function.name + ": " + summaries.get(function).cost.describe() + "\n");
+    }
+    writer.write("    " + MAIN + ": " + program.cost.describe() + "\n");
+    List<String> lines = new ArrayList<>();
+    for (Loop loop : loops) {
+      lines.add(loop.describe());
+    }
+    section(writer, "Loops", lines);
+    section(writer, "Unbounded growth", growth);
+    section(writer, "Warnings", warnings);
+  }
+
+  private static void section(Writer writer, String title, List<String> lines) throws IOException {
+    writer.write("\n" + title + ":\n");
+    if (lines.isEmpty()) {
+      writer.write("    (none)\n");
+    }
+    for (String line : lines) {
+      writer.write("    " + line + "\n");
+    }
+  }
+
+  /** @return The summary of the function or null if it is already being analysed. */
+  private Summary summary(FuncBlock function) {
+    Summary summary = summaries.get(function);
+    if (summary != null || !visiting.add(function)) {
+      return summary;
+    }
+    summary = analyse(function, function.name);
+    visiting.remove(function);
+    summaries.put(function, summary);
+    return summary;
+  }
+
+  /**
+   * Analyses a function or the main program from scratch, where every variable starts out as a
+   * symbol of its own name.
+   */
+  private Summary analyse(Block block, String scope) {
+    Context context = new Context(scope);
+    Map<Variable, Polynomial> values = new LinkedHashMap<>();
+    Polynomial cost = run(block.commands, values, context, 0);
+    for (Map.Entry<Variable, Integer> entry : context.changed.entrySet()) {
+      Variable variable = entry.getKey();
+      // Locals that are put back before returning, such as a loop counter, don't grow at all.
+      Polynomial grown = values.get(variable).minus(Polynomial.symbol(variable.name));
+      if (!grown.isConstant()) {
+        growth.add(
+            variable.name
+                + " in "
+                + scope
+                + " (line "
+                + entry.getValue()
+                + ") grows by up to "
+                + grown.describe());
+      }
+    }
+    return new Summary(block, cost, values);
+  }
+
+  private Polynomial run(
+      List<Command> commands, Map<Variable, Polynomial> values, Context context, int depth) {
+    Polynomial total = Polynomial.zero();
+    for (Command command : commands) {
+      if (command instanceof WhileBlock) {
+        total = total.plus(loop((WhileBlock) command, values, context, depth + 1));
+        continue;
+      }
+      if (command instanceof Func) {
+        total = total.plus(call((Func) command, values, context));
+      } else if (command instanceof Clear) {
+        values.put(((Clear) command).variable, Polynomial.zero());
+      } else if (command instanceof Incr) {
+        Variable variable = ((Incr) command).variable;
+        values.put(variable, value(values, variable).plus(Polynomial.constant(1)));
+        context.changed.putIfAbsent(variable, command.lineNumber);
+      }
+      // Decrementing a variable can only lower it so its bound stays the same.
+      total = total.plus(Polynomial.constant(1));
+    }
+    return total;
+  }
+
+  /**
+   * Every variable the loop changes starts each pass as a symbol of its own, so a single pass over
+   * the body shows how much each of them changes. The bounds over every pass then follow from the
+   * number of passes, starting with the variables that don't depend on any of the others.
+   */
+  private Polynomial loop(
+      WhileBlock loop, Map<Variable, Polynomial> values, Context context, int depth) {
+    String name = loop.variable.name;
+    String location = "line " + loop.lineNumber + " in " + context.scope + ": while " + name;
+    Loop report = new Loop(location, depth);
+    loops.add(report);
+    int inner = loops.size();
+
+    Set<Variable> written = new LinkedHashSet<>();
+    written(loop.commands, written);
+    Map<Variable, String> symbols = new LinkedHashMap<>();
+    Map<Variable, Polynomial> start = new LinkedHashMap<>();
+    for (Variable variable : written) {
+      symbols.put(variable, variable.name + "@" + depth);
+      start.put(variable, value(values, variable));
+    }
+    Map<Variable, Polynomial> pass = new LinkedHashMap<>(values);
+    for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+      pass.put(entry.getKey(), Polynomial.symbol(entry.getValue()));
+    }
+    Polynomial body = run(loop.commands, pass, context, depth);
+
+    Usage usage = new Usage();
+    usage.scan(loop.commands, loop.variable);
+    Polynomial passes = value(values, loop.variable);
+    if (written.contains(loop.variable) && value(pass, loop.variable).isZero()) {
+      // The variable is always 0 after the first pass so the loop stops.
+      passes = Polynomial.constant(1);
+    } else if (usage.passedByReference) {
+      warnings.add(location + " passes " + name + " by reference so its bound is unknown.");
+    } else if (usage.decrements == 0) {
+      warnings.add(location + " never decrements " + name + ", likely an infinite loop.");
+      passes = Polynomial.unbounded();
+    } else if (usage.increments > 0) {
+      warnings.add(location + " both increments and decrements " + name + ".");
+    }
+
+    Map<String, Polynomial> bounds = bounds(symbols, start, pass, passes);
+    Polynomial cost;
+    if (bounds.size() == symbols.size()) {
+      cost = passes.times(body.substitute(bounds));
+      for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+        values.put(entry.getKey(), bounds.get(entry.getValue()));
+      }
+    } else if (passes.isConstant() && passes.constant() <= MAX_UNROLLED) {
+      cost = Polynomial.zero();
+      for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+        bounds.put(entry.getValue(), Polynomial.zero());
+      }
+      Map<Variable, Polynomial> current = start;
+      for (long i = 0; i < passes.constant(); i++) {
+        Map<String, Polynomial> arguments = new HashMap<>();
+        for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+          Polynomial before = current.get(entry.getKey());
+          arguments.put(entry.getValue(), before);
+          bounds.put(entry.getValue(), bounds.get(entry.getValue()).plus(before));
+        }
+        cost = cost.plus(body.substitute(arguments));
+        Map<Variable, Polynomial> next = new LinkedHashMap<>();
+        for (Variable variable : written) {
+          next.put(variable, value(pass, variable).substitute(arguments));
+        }
+        current = next;
+      }
+      values.putAll(current);
+    } else {
+      for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+        if (!bounds.containsKey(entry.getValue())) {
+          warnings.add(location + " may grow " + entry.getKey().name + " exponentially.");
+          bounds.put(entry.getValue(), Polynomial.unbounded());
+        }
+      }
+      cost = passes.times(body.substitute(bounds));
+      for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+        values.put(entry.getKey(), bounds.get(entry.getValue()));
+      }
+    }
+    // The loop only finishes once its variable is 0.
+    values.put(loop.variable, Polynomial.zero());
+
+    report.cost = cost;
+    for (Loop nested : loops.subList(inner, loops.size())) {
+      nested.cost = nested.cost.substitute(bounds);
+    }
+    return cost.plus(Polynomial.constant(1));
+  }
+
+  /**
+   * Bounds every variable the loop changes over all of its passes. A variable either ends a pass
+   * where it started, is set from the others, or grows by the same amount every pass. Anything
+   * else, such as a variable that is doubled every pass, is left out.
+   */
+  private static Map<String, Polynomial> bounds(
+      Map<Variable, String> symbols,
+      Map<Variable, Polynomial> start,
+      Map<Variable, Polynomial> pass,
+      Polynomial passes) {
+    Map<String, Polynomial> bounds = new HashMap<>();
+    boolean progress = true;
+    while (progress) {
+      progress = false;
+      for (Map.Entry<Variable, String> entry : symbols.entrySet()) {
+        String symbol = entry.getValue();
+        Polynomial after = value(pass, entry.getKey());
+        Set<String> others = after.symbols();
+        others.retainAll(symbols.values());
+        others.remove(symbol);
+        if (bounds.containsKey(symbol) || !bounds.keySet().containsAll(others)) {
+          continue;
+        }
+        Polynomial before = start.get(entry.getKey());
+        if (after.equals(Polynomial.symbol(symbol))) {
+          bounds.put(symbol, before);
+        } else if (!after.symbols().contains(symbol)) {
+          bounds.put(symbol, before.plus(after.substitute(bounds)));
+        } else if (after.isLinearIn(symbol)) {
+          Polynomial step = after.minus(Polynomial.symbol(symbol)).substitute(bounds);
+          bounds.put(symbol, before.plus(passes.times(step)));
+        } else {
+          continue;
+        }
+        progress = true;
+      }
+    }
+    return bounds;
+  }
+
+  private Polynomial call(Func call, Map<Variable, Polynomial> values, Context context) {
+    FuncBlock function = call.funcBlock;
+    callGraph.get(context.scope).add(function.name);
+    Summary callee = summary(function);
+    if (callee == null) {
+      // The function frame is shared so recursion can never be bounded by its arguments.
+      warnings.add("line " + function.lineNumber + ": " + function.name + " is recursive.");
+      for (int i = 0; i < call.args.length; i++) {
+        if (call.references[i]) {
+          values.put(call.args[i], Polynomial.unbounded());
+          context.changed.putIfAbsent(call.args[i], call.lineNumber);
+        }
+      }
+      return Polynomial.unbounded();
+    }
+    Map<String, Polynomial> arguments = new HashMap<>();
+    for (Variable global : callee.globals) {
+      arguments.put(global.name, value(values, global));
+    }
+    for (int i = 0; i < call.args.length; i++) {
+      arguments.put(function.args[i], value(values, call.args[i]));
+    }
+    Map<Variable, Polynomial> results = new LinkedHashMap<>();
+    for (Variable global : callee.globals) {
+      results.put(global, callee.value(global).substitute(arguments));
+    }
+    for (int i = 0; i < call.args.length; i++) {
+      if (call.references[i]) {
+        Variable parameter = function.variables.get(function.args[i]);
+        results.put(call.args[i], callee.value(parameter).substitute(arguments));
+      }
+    }
+    for (Map.Entry<Variable, Polynomial> entry : results.entrySet()) {
+      if (!entry.getValue().equals(values.get(entry.getKey()))) {
+        context.changed.putIfAbsent(entry.getKey(), call.lineNumber);
+      }
+      values.put(entry.getKey(), entry.getValue());
+    }
+    return callee.cost.substitute(arguments);
+  }
+
+  /** Collects every variable the commands can change, including through references and globals. */
+  private void written(List<Command> commands, Set<Variable> written) {
+    for (Command command : commands) {
+      if (command instanceof Incr) {
+        written.add(((Incr) command).variable);
+      } else if (command instanceof Decr) {
+        written.add(((Decr) command).variable);
+      } else if (command instanceof Clear) {
+        written.add(((Clear) command).variable);
+      } else if (command instanceof WhileBlock) {
+        written(((WhileBlock) command).commands, written);
+      } else if (command instanceof Func) {
+        Func call = (Func) command;
+        for (int i = 0; i < call.args.length; i++) {
+          if (call.references[i]) {
+            written.add(call.args[i]);
+          }
+        }
+        Summary callee = summaries.get(call.funcBlock);
+        if (callee != null) {
+          written.addAll(callee.globals);
+        }
+      }
+    }
+  }
+
+  private static Polynomial value(Map<Variable, Polynomial> values, Variable variable) {
+    return values.computeIfAbsent(variable, v -> Polynomial.symbol(v.name));
+  }
+
+  /** The function or main program being analysed. */
+  private static final class Context {
+    final String scope;
+    // Every variable that is changed by more than clearing it, with the first line that does.
+    final Map<Variable, Integer> changed = new LinkedHashMap<>();
+
+    Context(String scope) {
+      this.scope = scope;
+    }
+  }
+
+  /** The cost of a function and the bounds of its variables once it returns. */
+  private static final class Summary {
+    final Polynomial cost;
+    final Map<Variable, Polynomial> values;
+    // Variables outside of the function's frame that it reads or changes.
+    final Set<Variable> globals = new LinkedHashSet<>();
+
+    Summary(Block block, Polynomial cost, Map<Variable, Polynomial> values) {
+      this.cost = cost;
+      this.values = values;
+      Set<Variable> frame = new HashSet<>();
+      frame(block, frame);
+      for (Variable variable : values.keySet()) {
+        if (!frame.contains(variable)) {
+          globals.add(variable);
+        }
+      }
+    }
+
+    Polynomial value(Variable variable) {
+      return values.getOrDefault(variable, Polynomial.symbol(variable.name));
+    }
+
+    private static void frame(Block block, Set<Variable> frame) {
+      frame.addAll(block.variables.values());
+      for (Command command : block.commands) {
+        if (command instanceof WhileBlock) {
+          frame((WhileBlock) command, frame);
+        }
+      }
+    }
+  }
+
+  private static final class Loop {
+    final String location;
+    final int depth;
+    Polynomial cost = Polynomial.zero();
+
+    Loop(String location, int depth) {
+      this.location = location;
+      this.depth = depth;
+    }
+
+    String describe() {
+      String degree = cost.degree() >= 2 ? " (" + cost.complexity() + ")" : "";
+      return location + ", depth " + depth + ", " + cost.describe() + degree;
+    }
+  }
+
+  /** Counts how the loop variable is changed inside a loop body, including nested loops. */
+  private static final class Usage {
+    int increments;
+    int decrements;
+    boolean passedByReference;
+
+    void scan(List<Command> commands, Variable variable) {
+      for (Command command : commands) {
+        if (command instanceof Incr && ((Incr) command).variable == variable) {
+          increments += 1;
+        } else if (command instanceof Decr && ((Decr) command).variable == variable) {
+          decrements += 1;
+        } else if (command instanceof WhileBlock) {
+          scan(((WhileBlock) command).commands, variable);
+        } else if (command instanceof Func) {
+          Func call = (Func) command;
+          for (int i = 0; i < call.args.length; i++) {
+            if (call.references[i] && call.args[i] == variable) {
+              passedByReference = true;
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * A polynomial is a sum of products of variables with a coefficient each, "1" being the product
+   * of no variables. It is used both for costs and for the bounds of variables, and only drops the
+   * coefficients and the terms dominated by a larger term when it is described. Coefficients stop
+   * at the largest long instead of overflowing.
+   */
+  private static final class Polynomial {
+    private final TreeMap<String, Long> terms = new TreeMap<>();
+    private boolean unbounded;
+
+    static Polynomial zero() {
+      return new Polynomial();
+    }
+
+    static Polynomial constant(long value) {
+      Polynomial polynomial = new Polynomial();
+      if (value != 0) {
+        polynomial.terms.put("1", value);
+      }
+      return polynomial;
+    }
+
+    static Polynomial symbol(String name) {
+      Polynomial polynomial = new Polynomial();
+      polynomial.terms.put(name, 1L);
+      return polynomial;
+    }
+
+    static Polynomial unbounded() {
+      Polynomial polynomial = new Polynomial();
+      polynomial.unbounded = true;
+      return polynomial;
+    }
+
+    boolean isZero() {
+      return !unbounded && terms.isEmpty();
+    }
+
+    boolean isConstant() {
+      return !unbounded && (terms.isEmpty() || terms.keySet().equals(Set.of("1")));
+    }
+
+    long constant() {
+      return terms.getOrDefault("1", 0L);
+    }
+
+    Polynomial plus(Polynomial other) {
+      Polynomial polynomial = new Polynomial();
+      polynomial.unbounded = unbounded || other.unbounded;
+      polynomial.terms.putAll(terms);
+      for (Map.Entry<String, Long> entry : other.terms.entrySet()) {
+        polynomial.terms.merge(entry.getKey(), entry.getValue(), Polynomial::add);
+      }
+      return polynomial;
+    }
+
+    /** Subtracts the other polynomial term by term, dropping any term that would go negative. */
+    Polynomial minus(Polynomial other) {
+      Polynomial polynomial = new Polynomial();
+      polynomial.unbounded = unbounded;
+      for (Map.Entry<String, Long> entry : terms.entrySet()) {
+        long coefficient = entry.getValue() - other.terms.getOrDefault(entry.getKey(), 0L);
+        if (coefficient > 0) {
+          polynomial.terms.put(entry.getKey(), coefficient);
+        }
+      }
+      return polynomial;
+    }
+
+    Polynomial times(Polynomial other) {
+      if (isZero() || other.isZero()) {
+        return zero();
+      } else if (unbounded || other.unbounded) {
+        return unbounded();
+      }
+      Polynomial polynomial = new Polynomial();
+      for (Map.Entry<String, Long> left : terms.entrySet()) {
+        for (Map.Entry<String, Long> right : other.terms.entrySet()) {
+          polynomial.terms.merge(
+              product(left.getKey(), right.getKey()),
+              multiply(left.getValue(), right.getValue()),
+              Polynomial::add);
+        }
+      }
+      return polynomial;
+    }
+
+    /** Replaces every symbol at once, leaving the symbols without a replacement as they are. */
+    Polynomial substitute(Map<String, Polynomial> names) {
+      Polynomial polynomial = unbounded ? unbounded() : zero();
+      for (Map.Entry<String, Long> entry : terms.entrySet()) {
+        Polynomial term = constant(entry.getValue());
+        for (String factor : factors(entry.getKey())) {
+          term = term.times(names.getOrDefault(factor, symbol(factor)));
+        }
+        polynomial = polynomial.plus(term);
+      }
+      return polynomial;
+    }
+
+    Set<String> symbols() {
+      Set<String> symbols = new HashSet<>();
+      for (String term : terms.keySet()) {
+        symbols.addAll(factors(term));
+      }
+      return symbols;
+    }
+
+    /** Whether the symbol only ever appears on its own, once. */
+    boolean isLinearIn(String symbol) {
+      for (Map.Entry<String, Long> entry : terms.entrySet()) {
+        if (factors(entry.getKey()).contains(symbol)
+            && (!entry.getKey().equals(symbol) || entry.getValue() != 1)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    int degree() {
+      if (unbounded) {
+        return Integer.MAX_VALUE;
+      }
+      int degree = 0;
+      for (String term : terms.keySet()) {
+        degree = Math.max(degree, factors(term).size());
+      }
+      return degree;
+    }
+
+    String complexity() {
+      int degree = degree();
+      if (degree == Integer.MAX_VALUE) {
+        return "unbounded";
+      } else if (degree == 2) {
+        return "quadratic";
+      } else if (degree == 3) {
+        return "cubic";
+      }
+      return degree < 2 ? "linear" : "polynomial of degree " + degree;
+    }
+
+    String describe() {
+      if (unbounded) {
+        return "O(unbounded)";
+      }
+      TreeSet<String> largest = new TreeSet<>(terms.keySet());
+      for (String term : terms.keySet()) {
+        for (String other : terms.keySet()) {
+          if (!term.equals(other) && dominates(other, term)) {
+            largest.remove(term);
+            break;
+          }
+        }
+      }
+      return "O(" + (largest.isEmpty() ? "1" : String.join(" + ", largest)) + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Polynomial
+          && unbounded == ((Polynomial) other).unbounded
+          && terms.equals(((Polynomial) other).terms);
+    }
+
+    @Override
+    public int hashCode() {
+      return terms.hashCode() * 31 + Boolean.hashCode(unbounded);
+    }
+
+    private static List<String> factors(String term) {
+      return term.equals("1") ? List.of() : Arrays.asList(term.split("\\*"));
+    }
+
+    private static String product(String left, String right) {
+      List<String> factors = new ArrayList<>(factors(left));
+      factors.addAll(factors(right));
+      if (factors.isEmpty()) {
+        return "1";
+      }
+      factors.sort(null);
+      return String.join("*", factors);
+    }
+
+    private static long add(long left, long right) {
+      long sum = left + right;
+      return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static long multiply(long left, long right) {
+      return Math.multiplyHigh(left, right) != 0 || left * right < 0
+          ? Long.MAX_VALUE
+          : left * right;
+    }
+
+    /** Whether every factor of small also appears in large. */
+    private static boolean dominates(String large, String small) {
+      if (small.equals("1")) {
+        return true;
+      }
+      List<String> factors = new ArrayList<>(factors(large));
+      for (String factor : factors(small)) {
+        if (!factors.remove(factor)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package miam;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures how the interpreter scales from one to N cores. For every k from 1 to N it generates a
+ * program like parallel.bb that splits the same amount of counting between k functions, spawns all
+ * but one of them and calls the last one itself, then prints how long the whole program took.
+ *
+ * <p>Run it with {@code java -cp out miam.Benchmark [N] [repeats]}. N defaults to the number of
+ * available cores and the best of repeats runs, 3 by default, is printed for every k.
+ */
+public class Benchmark {
+  // How many times the outer loop of every counting function runs between all of them together.
+  private static final int TOTAL_PASSES = 1 << 18;
+  private static final int INNER_PASSES = 4;
+
+  public static void main(String[] args) throws BareBonesException, IOException {
+    int cores =
+        args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    // Once on every core first so that the first k is not slowed down by the JIT.
+    run(cores);
+    System.out.println("workers  time (ms)  speedup");
+    double single = 0;
+    for (int workers = 1; workers <= cores; workers++) {
+      long best = Long.MAX_VALUE;
+      for (int i = 0; i < repeats; i++) {
+        best = Math.min(best, run(workers));
+      }
+      double millis = best / 1e6;
+      if (workers == 1) {
+        single = millis;
+      }
+      System.out.printf("%7d  %9.1f  %6.2fx%n", workers, millis, single / millis);
+    }
+  }
+
+  /** @return How many nanoseconds the program with the given number of workers took to run. */
+  private static long run(int workers) throws BareBonesException, IOException {
+    Path file = Files.createTempFile("scaling", ".bb");
+    Parser parser;
+    try {
+      Files.writeString(file, program(workers));
+      parser = new Parser(file.toString());
+    } finally {
+      Files.delete(file);
+    }
+    long start = System.nanoTime();
+    parser.Group.run();
+    Scheduler.joinAll();
+    long nanos = System.nanoTime() - start;
+
+    long counted = 0;
+    for (int i = 0; i < workers; i++) {
+      counted += parser.Group.variables.get("total" + i).data;
+    }
+    long expected = (long) passes(workers) * workers * INNER_PASSES;
+    if (counted != expected) {
+      throw new BareBonesException("Counted " + counted + " instead of " + expected + ".");
+    }
+    return nanos;
+  }
+
+  /** @return How many passes of the outer loop each of the workers makes. */
+  private static int passes(int workers) {
+    return TOTAL_PASSES / workers;
+  }
+
+  /** @return The source of a program that counts on the given number of functions at once. */
+  private static String program(int workers) {
+    StringBuilder source = new StringBuilder();
+    for (int i = 0; i < workers; i++) {
+      source.append("func count").append(i).append("(N, Total);\n");
+      source.append("    while N not 0 do;\n");
+      source.append("        clear Inner;\n");
+      source.append("        ").append("incr Inner; ".repeat(INNER_PASSES).trim()).append('\n');
+      source.append("        while Inner not 0 do;\n");
+      source.append("            incr Total;\n");
+      source.append("            decr Inner;\n");
+      source.append("        end;\n");
+      source.append("        decr N;\n");
+      source.append("    end;\n");
+      source.append("end;\n");
+    }
+    // Builds the number of passes a bit at a time as there are no literals.
+    int passes = passes(workers);
+    source.append("clear n;\n");
+    for (int bit = 31 - Integer.numberOfLeadingZeros(passes); bit >= 0; bit--) {
+      source.append("clear copy;\n");
+      source.append("while n not 0 do;\n    incr copy; incr copy;\n    decr n;\nend;\n");
+      source.append("while copy not 0 do;\n    incr n;\n    decr copy;\nend;\n");
+      if ((passes & (1 << bit)) != 0) {
+        source.append("incr n;\n");
+      }
+    }
+    for (int i = 0; i < workers; i++) {
+      source.append("clear total").append(i).append(";\n");
+    }
+    for (int i = 1; i < workers; i++) {
+      source.append("spawn count").append(i).append("(n, &total").append(i).append(");\n");
+    }
+    source.append("count0(n, &total0);\n");
+    for (int i = 1; i < workers; i++) {
+      source.append("join count").append(i).append(";\n");
+    }
+    return source.toString();
+  }
+}
@@ -0,0 +1,112 @@
+package miam;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The CallCache remembers what a memoisable function left in its arguments for a given set of
+ * argument values. It is bounded and evicts the least recently used call once it is full. Keys and
+ * values are kept as int arrays so that no boxing happens on a lookup.
+ */
+class CallCache {
+  // Rough size of a LinkedHashMap entry, the key object and the two array headers.
+  private static final int ENTRY_OVERHEAD = 40 + 16 + 16 + 16;
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  private final LinkedHashMap<Key, int[]> entries;
+  public final int capacity;
+  public final int arity;
+  public long hits;
+  public long misses;
+  public long evictions;
+
+  public CallCache(int Arity, int Capacity) {
+    arity = Arity;
+    capacity = Capacity;
+    entries =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+            if (size() > capacity) {
+              evictions += 1;
+              return true;
+            }
+            return false;
+          }
+        };
+  }
+
+  /**
+   * @return The current values of the variables or null if any of them is still uninitialised, in
+   *     which case the call cannot be cached.
+   */
+  static int[] values(Variable[] variables) {
+    int[] values = new int[variables.length];
+    for (int i = 0; i < variables.length; i++) {
+      if (variables[i].data == null) {
+        return null;
+      }
+      values[i] = variables[i].data;
+    }
+    return values;
+  }
+
+  /** @return The values or null if any of them is still uninitialised. */
+  static int[] values(Integer[] data) {
+    int[] values = new int[data.length];
+    for (int i = 0; i < data.length; i++) {
+      if (data[i] == null) {
+        return null;
+      }
+      values[i] = data[i];
+    }
+    return values;
+  }
+
+  int[] get(int[] args) {
+    int[] results = entries.get(new Key(args));
+    if (results == null) {
+      misses += 1;
+    } else {
+      hits += 1;
+    }
+    return results;
+  }
+
+  void put(int[] args, int[] results) {
+    entries.put(new Key(args), results);
+  }
+
+  long memoryUsage() {
+    return (long) entries.size() * (ENTRY_OVERHEAD + 8L * arity);
+  }
+
+  String report(String name) {
+    long calls = hits + misses;
+    double hitRate = calls == 0 ? 0 : 100.0 * hits / calls;
+    return String.format(
+        "%s: %d hits, %d misses (%.1f%% hit rate), %d/%d entries, %d evictions, ~%d bytes",
+        name, hits, misses, hitRate, entries.size(), capacity, evictions, memoryUsage());
+  }
+
+  private static final class Key {
+    private final int[] values;
+    private final int hash;
+
+    Key(int[] Values) {
+      values = Values;
+      hash = Arrays.hashCode(Values);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key && Arrays.equals(values, ((Key) o).values);
+    }
+  }
+}
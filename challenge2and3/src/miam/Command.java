@@ -5,10 +5,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
 import java.util.Scanner;
+import java.util.Set;
 
 /**
  * The Command class is used to store all commands that the parser has parsed. It also contains
@@ -105,11 +107,14 @@ class Incr extends Command {
 
   @Override
   void run() throws BareBonesException {
-    variable.checkInitialise();
-    if (variable.data != Integer.MAX_VALUE) {
-      variable.data = variable.data + 1;
-    } else {
-      throw new BareBonesException("Variable " + variable.name + " has overflowed!");
+    // Locking on the variable makes incr atomic when it is shared with a spawned function.
+    synchronized (variable) {
+      variable.checkInitialise();
+      if (variable.data != Integer.MAX_VALUE) {
+        variable.data = variable.data + 1;
+      } else {
+        throw new BareBonesException("Variable " + variable.name + " has overflowed!");
+      }
     }
   }
 
@@ -148,11 +153,13 @@ class Decr extends Command {
 
   @Override
   void run() throws BareBonesException {
-    variable.checkInitialise();
-    if (variable.data != 0) {
-      variable.data = variable.data - 1;
-    } else {
-      throw new BareBonesException("Variable " + variable.name + " cannot be negative.");
+    synchronized (variable) {
+      variable.checkInitialise();
+      if (variable.data != 0) {
+        variable.data = variable.data - 1;
+      } else {
+        throw new BareBonesException("Variable " + variable.name + " cannot be negative.");
+      }
     }
   }
 
@@ -233,6 +240,40 @@ class Func extends Command {
 
   @Override
   void run() throws BareBonesException {
+    if (Thread.holdsLock(funcBlock)) {
+      // A recursive call, which shares the frame we are already in.
+      call();
+      return;
+    }
+    // A function only has a single frame so calls from different threads have to take turns.
+    Scheduler.entering(funcBlock);
+    synchronized (funcBlock) {
+      Scheduler.entered();
+      funcBlock.owner = Thread.currentThread();
+      try {
+        call();
+      } finally {
+        funcBlock.owner = null;
+      }
+    }
+  }
+
+  private void call() throws BareBonesException {
+    CallCache cache = funcBlock.cache;
+    int[] inputs = null;
+    if (cache != null && (inputs = CallCache.values(args)) != null) {
+      int[] outputs = cache.get(inputs);
+      if (outputs != null) {
+        // Only the references can be observed by the caller so the function body can be skipped.
+        for (int j = 0; j < args.length; j++) {
+          if (references[j]) {
+            args[j].data = outputs[j];
+          }
+        }
+        return;
+      }
+    }
+
     int i = 0;
     for (String arg : funcBlock.args) {
       Variable arg_func = funcBlock.variables.get(arg);
@@ -242,16 +283,41 @@ class Func extends Command {
 
     funcBlock.run();
 
+    int[] outputs = inputs != null ? new int[args.length] : null;
     for (int j = 0; j < args.length; j++) {
+      Variable arg_func = funcBlock.variables.get(funcBlock.args[j]);
       if (references[j]) {
-        Variable arg_func = funcBlock.variables.get(funcBlock.args[j]);
         args[j].data = arg_func.data;
       }
+      if (outputs != null) {
+        outputs[j] = arg_func.data;
+      }
+    }
+    if (outputs != null) {
+      cache.put(inputs, outputs);
     }
   }
 
   @Override
   void run(HashMap<Integer, Boolean> breakpoints, Block group) throws BareBonesException {
+    if (Thread.holdsLock(funcBlock)) {
+      call(breakpoints, group);
+      return;
+    }
+    Scheduler.entering(funcBlock);
+    synchronized (funcBlock) {
+      Scheduler.entered();
+      funcBlock.owner = Thread.currentThread();
+      try {
+        call(breakpoints, group);
+      } finally {
+        funcBlock.owner = null;
+      }
+    }
+  }
+
+  private void call(HashMap<Integer, Boolean> breakpoints, Block group)
+      throws BareBonesException {
     int i = 0;
     for (String arg : funcBlock.args) {
       Variable arg_func = funcBlock.variables.get(arg.replace("&", ""));
@@ -390,6 +456,104 @@ class Func extends Command {
   }
 }
 
+/**
+ * Spawn starts a function call on another thread. The arguments are copied when the function is
+ * spawned but references are only written back once the function is joined. The transpilers have
+ * no threads so they simply call the function straight away which is one valid ordering.
+ */
+class Spawn extends Func {
+  public Spawn(Variable[] Args, FuncBlock FuncBlock, boolean[] References, int LineNumber) {
+    super(Args, FuncBlock, References, LineNumber);
+  }
+
+  @Override
+  void run() throws BareBonesException {
+    Scheduler.spawn(this);
+  }
+
+  @Override
+  void run(HashMap<Integer, Boolean> breakpoints, Block group) throws BareBonesException {
+    debug(breakpoints, group);
+    run();
+  }
+
+  /** Called on the spawned thread, going through the function's cache just like a plain call. */
+  void execute(Integer[] inputs, Integer[] outputs) throws BareBonesException {
+    Scheduler.entering(funcBlock);
+    synchronized (funcBlock) {
+      Scheduler.entered();
+      funcBlock.owner = Thread.currentThread();
+      try {
+        CallCache cache = funcBlock.cache;
+        int[] key = cache != null ? CallCache.values(inputs) : null;
+        int[] cached = key != null ? cache.get(key) : null;
+        if (cached != null) {
+          for (int j = 0; j < outputs.length; j++) {
+            outputs[j] = cached[j];
+          }
+          return;
+        }
+        for (int i = 0; i < inputs.length; i++) {
+          funcBlock.variables.get(funcBlock.args[i]).data = inputs[i];
+        }
+        funcBlock.run();
+        for (int j = 0; j < outputs.length; j++) {
+          outputs[j] = funcBlock.variables.get(funcBlock.args[j]).data;
+        }
+        if (key != null) {
+          cache.put(key, CallCache.values(outputs));
+        }
+      } finally {
+        funcBlock.owner = null;
+      }
+    }
+  }
+
+  @Override
+  void format(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
+    fileWriter.write("spawn ");
+    super.format(fileWriter, comments);
+  }
+}
+
+class Join extends Command {
+  FuncBlock funcBlock;
+
+  public Join(FuncBlock FuncBlock, int LineNumber) {
+    funcBlock = FuncBlock;
+    lineNumber = LineNumber;
+  }
+
+  @Override
+  void run() throws BareBonesException {
+    Scheduler.join(funcBlock);
+  }
+
+  @Override
+  void format(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
+    fileWriter.write("join " + funcBlock.name + ";");
+    comment(fileWriter, comments);
+  }
+
+  @Override
+  void py(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
+    fileWriter.write("pass  # join " + funcBlock.name);
+    pyComment(fileWriter, comments);
+  }
+
+  @Override
+  void rust(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
+    fileWriter.write("/* join " + funcBlock.name + " */");
+    comment(fileWriter, comments);
+  }
+
+  @Override
+  void cpp(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
+    fileWriter.write("/* join " + funcBlock.name + " */");
+    comment(fileWriter, comments);
+  }
+}
+
 class Block extends Command {
   public final List<Command> commands = new LinkedList<>();
   public final HashMap<String, Variable> variables = new HashMap<>();
@@ -477,6 +641,9 @@ class FuncBlock extends Block {
   // Remember to reset vars
   public String[] args;
   public String name;
+  public CallCache cache; // Only set when memoisation is enabled and the function is memoisable.
+  public volatile Scheduler.Task task; // Set whilst the function is spawned but not yet joined.
+  public volatile Thread owner; // The thread whose call is in the function's frame, if any.
 
   public FuncBlock(String[] Args, int lineNumber, String Name) {
     super(lineNumber, 1);
@@ -487,6 +654,81 @@ class FuncBlock extends Block {
     }
   }
 
+  /**
+   * A function can be memoised when it only touches variables in its own frame, clears every local
+   * before reading it and only calls other memoisable functions. Its arguments are then its only
+   * inputs and its references its only outputs. Recursive functions share their frame with
+   * themselves and so are never memoisable.
+   */
+  boolean isMemoisable() {
+    return isMemoisable(new HashSet<>());
+  }
+
+  private boolean isMemoisable(Set<FuncBlock> visiting) {
+    if (!visiting.add(this)) {
+      return false;
+    }
+    Set<Variable> frame = new HashSet<>();
+    collectFrame(this, frame);
+    Set<Variable> defined = new HashSet<>();
+    for (String arg : args) {
+      defined.add(variables.get(arg));
+    }
+    boolean memoisable = isPure(commands, frame, defined, visiting);
+    visiting.remove(this);
+    return memoisable;
+  }
+
+  private static void collectFrame(Block block, Set<Variable> frame) {
+    frame.addAll(block.variables.values());
+    for (Command command : block.commands) {
+      if (command instanceof WhileBlock) {
+        collectFrame((WhileBlock) command, frame);
+      }
+    }
+  }
+
+  private static boolean isPure(
+      List<Command> commands, Set<Variable> frame, Set<Variable> defined, Set<FuncBlock> visiting) {
+    for (Command command : commands) {
+      if (command instanceof Spawn || command instanceof Join) {
+        return false;
+      } else if (command instanceof Clear) {
+        Variable variable = ((Clear) command).variable;
+        if (!frame.contains(variable)) {
+          return false;
+        }
+        defined.add(variable);
+      } else if (command instanceof Incr) {
+        if (!defined.contains(((Incr) command).variable)) {
+          return false;
+        }
+      } else if (command instanceof Decr) {
+        if (!defined.contains(((Decr) command).variable)) {
+          return false;
+        }
+      } else if (command instanceof WhileBlock) {
+        WhileBlock loop = (WhileBlock) command;
+        // Anything cleared inside the loop may never be cleared so is forgotten afterwards.
+        if (!defined.contains(loop.variable)
+            || !isPure(loop.commands, frame, new HashSet<>(defined), visiting)) {
+          return false;
+        }
+      } else if (command instanceof Func) {
+        Func call = (Func) command;
+        for (Variable arg : call.args) {
+          if (!defined.contains(arg)) {
+            return false;
+          }
+        }
+        if (!call.funcBlock.isMemoisable(visiting)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   @Override
   void format(FileWriter fileWriter, HashMap<Integer, String> comments) throws IOException {
     fileWriter.write("func " + name + "(" + String.join(", ", args) + ");");
@@ -4,18 +4,45 @@ import java.util.HashMap;
 
 public class Interpreter {
   Block group;
+  HashMap<String, FuncBlock> functions;
 
   public Interpreter(Parser parser) {
     group = parser.Group;
+    functions = parser.Functions;
+  }
+
+  /**
+   * Turns on memoisation for every function that only depends on its arguments. Calls to these
+   * functions with previously seen argument values will then skip running the function entirely.
+   *
+   * @param capacity The maximum number of calls to remember per function.
+   */
+  public void memoise(int capacity) {
+    for (FuncBlock function : functions.values()) {
+      if (function.isMemoisable()) {
+        function.cache = new CallCache(function.args.length, capacity);
+      }
+    }
   }
 
   public void start() throws BareBonesException {
     group.run();
+    Scheduler.joinAll();
     System.out.println("Finished!");
+    report();
   }
 
   public void start(HashMap<Integer, Boolean> breakpoints) throws BareBonesException {
     group.run(breakpoints, group);
+    Scheduler.joinAll();
     System.out.println("Finished!");
   }
+
+  private void report() {
+    for (FuncBlock function : functions.values()) {
+      if (function.cache != null) {
+        System.out.println(function.cache.report(function.name));
+      }
+    }
+  }
 }
@@ -7,8 +7,8 @@ public class Main {
   /**
    * @param args First argument used to find what file to parse. Second argument used in the
    *     following ways: No arguments - File ran normally Files ending in .py, .bb, .java, .rs, .cpp
-   *     - Transpiled into their corresponding formats and stored in the file given. Anything else -
-   *     File ran with debugger
+   *     - Transpiled into their corresponding formats and stored in the file given. memoise - File
+   *     ran normally with calls to pure functions cached. Anything else - File ran with debugger
    * @throws BareBonesException Throws a custom exception that can describe errors during parsing or
    *     interpreting.
    */
@@ -24,6 +24,7 @@ public class Main {
       } else if (args[1].endsWith(".bb")) {
         try {
           Transpiler.format(parser, args[1]);
+          Analyser.report(parser, args[1] + ".report");
         } catch (IOException e) {
           throw new BareBonesException("Could not write formatted file.");
         }
@@ -39,6 +40,10 @@ public class Main {
         } catch (IOException e) {
           throw new BareBonesException("Could not write formatted file.");
         }
+      } else if (args[1].equals("memoise")) {
+        Interpreter interpreter = new Interpreter(parser);
+        interpreter.memoise(CallCache.DEFAULT_CAPACITY);
+        interpreter.start();
       } else {
         Interpreter interpreter = new Interpreter(parser);
         HashMap<Integer, Boolean> map = new HashMap<>();
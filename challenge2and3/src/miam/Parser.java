@@ -23,7 +23,7 @@ import java.util.regex.Pattern;
 public class Parser {
   private static final Pattern PATTERN =
       Pattern.compile(
-          "\\s*(?:incr\\s+(\\w+)|decr\\s+(\\w+)|clear\\s+(\\w+)|while\\s+(\\w+)\\s+not\\s+0\\s+do|(end)|func\\s+(\\w+)\\s*\\((\\s*\\w+\\s*(?:,\\s*\\w+\\s*)*)\\)|(\\w+)\\s*\\((\\s*[&]?\\w+\\s*(?:,\\s*[&]?\\w+\\s*)*)\\))\\s*;\\s*|\\s*//[ \\t]*+(.+)?[ \\t]*\\s*"); // Pattern to find the 8 different commands in a BareBones file (counting comments)
+          "\\s*(?:incr\\s+(\\w+)|decr\\s+(\\w+)|clear\\s+(\\w+)|while\\s+(\\w+)\\s+not\\s+0\\s+do|(end)|func\\s+(\\w+)\\s*\\((\\s*\\w+\\s*(?:,\\s*\\w+\\s*)*)\\)|(\\w+)\\s*\\((\\s*[&]?\\w+\\s*(?:,\\s*[&]?\\w+\\s*)*)\\)|spawn\\s+(\\w+)\\s*\\((\\s*[&]?\\w+\\s*(?:,\\s*[&]?\\w+\\s*)*)\\)|join\\s+(\\w+))\\s*;\\s*|\\s*//[ \\t]*+(.+)?[ \\t]*\\s*"); // Pattern to find the 10 different commands in a BareBones file (counting comments)
   private final Stack<Block> Groups = new Stack<>();
   public HashMap<Integer, String> Comments = new HashMap<>();
   public HashMap<String, FuncBlock> Functions = new HashMap<>();
@@ -131,36 +131,51 @@ public class Parser {
       Functions.put(func_name, func);
       Groups.push(func);
     } else if (match.group(8) != null && match.group(9) != null) {
-      String func_name = match.group(8);
-      String[] args = match.group(9).split("\\s*,\\s*");
-      FuncBlock func = Functions.get(func_name);
+      Groups.lastElement().add(AddCall(match.group(8), match.group(9), false));
+    } else if (match.group(10) != null && match.group(11) != null) {
+      Groups.lastElement().add(AddCall(match.group(10), match.group(11), true));
+    } else if ((res = match.group(12)) != null) {
+      FuncBlock func = Functions.get(res);
       if (func == null) {
         throw new BareBonesException("Could not find function.");
-      } else if (func.args.length != args.length) {
-        throw new BareBonesException("Function has incorrect argument count.");
-      } else {
-        boolean[] references = new boolean[args.length];
-        Variable[] vars = new Variable[args.length];
-        for (int i = 0; i < args.length; i++) {
-          String sanitisedArg;
-          if (args[i].startsWith("&")) {
-            sanitisedArg = args[i].substring(1);
-            references[i] = true;
-          } else {
-            sanitisedArg = args[i];
-          }
-          if ((var = FindVariable(sanitisedArg)) == null) {
-            throw new BareBonesException(
-                "Variable " + sanitisedArg + " is used before it is instantiated.");
-          }
-          vars[i] = var;
-        }
-        Groups.lastElement().add(new Func(vars, func, references, lineNumber));
       }
-    } else if (match.group(10) != null) {
+      Groups.lastElement().add(new Join(func, lineNumber));
+    } else if (match.group(13) != null) {
       // This is where comments are matched.
       //      lineNumber -= 1;
-      Comments.merge(lineNumber, match.group(10), String::concat);
+      Comments.merge(lineNumber, match.group(13), String::concat);
+    }
+  }
+
+  private Func AddCall(String func_name, String argList, boolean spawn)
+      throws BareBonesException {
+    String[] args = argList.split("\\s*,\\s*");
+    FuncBlock func = Functions.get(func_name);
+    if (func == null) {
+      throw new BareBonesException("Could not find function.");
+    } else if (func.args.length != args.length) {
+      throw new BareBonesException("Function has incorrect argument count.");
+    }
+    boolean[] references = new boolean[args.length];
+    Variable[] vars = new Variable[args.length];
+    for (int i = 0; i < args.length; i++) {
+      String sanitisedArg;
+      if (args[i].startsWith("&")) {
+        sanitisedArg = args[i].substring(1);
+        references[i] = true;
+      } else {
+        sanitisedArg = args[i];
+      }
+      Variable var;
+      if ((var = FindVariable(sanitisedArg)) == null) {
+        throw new BareBonesException(
+            "Variable " + sanitisedArg + " is used before it is instantiated.");
+      }
+      vars[i] = var;
+    }
+    if (spawn) {
+      return new Spawn(vars, func, references, lineNumber);
     }
+    return new Func(vars, func, references, lineNumber);
   }
 }
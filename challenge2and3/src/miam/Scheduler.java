@@ -0,0 +1,185 @@
+package miam;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The Scheduler runs spawned function calls on their own threads. It also keeps track of which
+ * thread is waiting to join which function, and once anything has been spawned which thread is
+ * waiting to call a function another thread is in, so that a cycle of threads waiting on each other
+ * is reported as an error instead of hanging the interpreter forever. All bookkeeping is guarded by
+ * the Scheduler's monitor which is also what joining threads wait on.
+ */
+class Scheduler {
+  private static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "barebones-spawn");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static final HashMap<Thread, FuncBlock> waitingOn = new HashMap<>();
+  private static final HashMap<Thread, FuncBlock> enteringOn = new HashMap<>();
+  private static final List<FuncBlock> spawned = new ArrayList<>();
+  // Calls only need to be tracked once there is more than one thread.
+  private static volatile boolean active = false;
+
+  static synchronized void spawn(Spawn call) throws BareBonesException {
+    FuncBlock function = call.funcBlock;
+    if (Thread.holdsLock(function)) {
+      // The spawned thread would wait for this call to return which could itself be joining it.
+      throw new BareBonesException("Function " + function.name + " cannot spawn itself.");
+    } else if (function.task != null) {
+      throw new BareBonesException(
+          "Function " + function.name + " must be joined before it is spawned again.");
+    }
+    Integer[] inputs = new Integer[call.args.length];
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = call.args[i].data;
+    }
+    Task task = new Task(call, inputs);
+    active = true;
+    function.task = task;
+    spawned.add(function);
+    EXECUTOR.execute(task);
+  }
+
+  static void join(FuncBlock function) throws BareBonesException {
+    Task task;
+    Thread current = Thread.currentThread();
+    synchronized (Scheduler.class) {
+      task = function.task;
+      if (task == null) {
+        throw new BareBonesException(
+            "Function " + function.name + " was joined before it was spawned.");
+      }
+      checkForCycle(current, task.thread, "joining " + function.name);
+      waitingOn.put(current, function);
+      try {
+        while (!task.done) {
+          Scheduler.class.wait();
+        }
+      } catch (InterruptedException e) {
+        throw new BareBonesException("Interrupted whilst joining " + function.name + ".");
+      } finally {
+        waitingOn.remove(current);
+      }
+      function.task = null;
+      spawned.remove(function);
+    }
+    if (task.error != null) {
+      throw new BareBonesException(
+          "Spawned function " + function.name + " failed: " + task.error.getMessage());
+    }
+    for (int j = 0; j < task.call.args.length; j++) {
+      if (task.call.references[j]) {
+        task.call.args[j].data = task.outputs[j];
+      }
+    }
+  }
+
+  /** Joins every function that was spawned but never joined so the program can finish cleanly. */
+  static void joinAll() throws BareBonesException {
+    while (true) {
+      FuncBlock function;
+      synchronized (Scheduler.class) {
+        if (spawned.isEmpty()) {
+          return;
+        }
+        function = spawned.get(0);
+      }
+      join(function);
+    }
+  }
+
+  /**
+   * Called before the current thread waits to call a function that is not already on its stack.
+   * Has to be followed by {@link #entered()} once it is in the function.
+   */
+  static void entering(FuncBlock function) throws BareBonesException {
+    if (!active) {
+      return;
+    }
+    Thread current = Thread.currentThread();
+    synchronized (Scheduler.class) {
+      checkForCycle(current, function.owner, "calling " + function.name);
+      enteringOn.put(current, function);
+    }
+  }
+
+  static void entered() {
+    if (!active) {
+      return;
+    }
+    synchronized (Scheduler.class) {
+      enteringOn.remove(Thread.currentThread());
+    }
+  }
+
+  /**
+   * Follows the chain of threads waiting on each other, either to join a function or to call a
+   * function another thread is in, starting from the thread the current one is about to wait on.
+   * If the chain leads back to the current thread then every thread on it would wait forever.
+   */
+  private static void checkForCycle(Thread current, Thread next, String waiting)
+      throws BareBonesException {
+    StringBuilder cycle = new StringBuilder(waiting);
+    Thread thread = next;
+    // Functions are entered outside of the Scheduler's monitor, so a stale chain could loop.
+    for (int i = 0; thread != null && i <= waitingOn.size() + enteringOn.size(); i++) {
+      if (thread == current) {
+        throw new BareBonesException("Deadlock detected whilst " + cycle + ".");
+      }
+      FuncBlock joining = waitingOn.get(thread);
+      FuncBlock entering = enteringOn.get(thread);
+      if (joining != null) {
+        Task task = joining.task;
+        thread = task == null || task.done ? null : task.thread;
+        cycle.append(" -> joining ").append(joining.name);
+      } else if (entering != null) {
+        thread = entering.owner;
+        cycle.append(" -> calling ").append(entering.name);
+      } else {
+        thread = null;
+      }
+    }
+  }
+
+  static final class Task implements Runnable {
+    final Spawn call;
+    final Integer[] inputs;
+    final Integer[] outputs;
+    volatile Thread thread;
+    private BareBonesException error;
+    private boolean done;
+
+    Task(Spawn Call, Integer[] Inputs) {
+      call = Call;
+      inputs = Inputs;
+      outputs = new Integer[Inputs.length];
+    }
+
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      BareBonesException failure = null;
+      try {
+        call.execute(inputs, outputs);
+      } catch (BareBonesException e) {
+        failure = e;
+      } catch (Throwable e) {
+        // Such as a StackOverflowError, which would otherwise leave the joining thread waiting.
+        failure = new BareBonesException(e.toString());
+      } finally {
+        synchronized (Scheduler.class) {
+          error = failure;
+          done = true;
+          Scheduler.class.notifyAll();
+        }
+      }
+    }
+  }
+}
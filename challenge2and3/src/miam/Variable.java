@@ -2,7 +2,7 @@ package miam;
 
 class Variable {
   public String name;
-  public Integer data;
+  public volatile Integer data; // Volatile so spawned functions see each other's writes.
 
   public Variable(String Name) {
     name = Name;
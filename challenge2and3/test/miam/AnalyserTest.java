@@ -0,0 +1,105 @@
+package miam;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+/**
+ * Pins the reports of the sample programs in bareBones, which have to be the same every time they
+ * are analysed. Run it from the challenge2and3 directory.
+ */
+public class AnalyserTest {
+  public static void main(String[] args) throws BareBonesException, IOException {
+    String main =
+        String.join(
+            "\n",
+            "Call graph:",
+            "    multiply -> (none)",
+            "    <main> -> multiply",
+            "",
+            "Estimated cost:",
+            "    multiply: O(X*Y)",
+            "    <main>: O(1)",
+            "",
+            "Loops:",
+            "    line 2 in multiply: while X, depth 1, O(X*Y) (quadratic)",
+            "    line 4 in multiply: while Y, depth 2, O(Y)",
+            "    line 9 in multiply: while W, depth 2, O(Y)",
+            "    line 22 in <main>: while three0, depth 1, O(1)",
+            "    line 23 in <main>: while three0, depth 2, O(1)",
+            "",
+            "Unbounded growth:",
+            "    Total in multiply (line 5) grows by up to O(X*Y)",
+            "",
+            "Warnings:",
+            "    (none)",
+            "");
+    check(report("bareBones/main.bb").equals(main), "the report of main.bb to match");
+    check(report("bareBones/format.bb").equals(main), "format.bb to match main.bb");
+
+    String parallel =
+        String.join(
+            "\n",
+            "Call graph:",
+            "    count0 -> (none)",
+            "    count1 -> (none)",
+            "    count2 -> (none)",
+            "    count3 -> (none)",
+            "    share -> (none)",
+            "    share1 -> (none)",
+            "    <main> -> count1, count2, count3, count0, share1, share",
+            "",
+            "Estimated cost:",
+            "    count0: O(N)",
+            "    count1: O(N)",
+            "    count2: O(N)",
+            "    count3: O(N)",
+            "    share: O(N)",
+            "    share1: O(N)",
+            "    <main>: O(1)",
+            "",
+            "Loops:",
+            "    line 4 in count0: while N, depth 1, O(N)",
+            "    line 7 in count0: while Inner, depth 2, O(1)",
+            "    line 15 in count1: while N, depth 1, O(N)",
+            "    line 18 in count1: while Inner, depth 2, O(1)",
+            "    line 26 in count2: while N, depth 1, O(N)",
+            "    line 29 in count2: while Inner, depth 2, O(1)",
+            "    line 37 in count3: while N, depth 1, O(N)",
+            "    line 40 in count3: while Inner, depth 2, O(1)",
+            "    line 77 in share: while N, depth 1, O(N)",
+            "    line 83 in share1: while N, depth 1, O(N)",
+            "    line 54 in <main>: while doubling, depth 1, O(1)",
+            "    line 56 in <main>: while n, depth 2, O(1)",
+            "    line 60 in <main>: while copy, depth 2, O(1)",
+            "",
+            "Unbounded growth:",
+            "    Total in count0 (line 8) grows by up to O(N)",
+            "    Total in count1 (line 19) grows by up to O(N)",
+            "    Total in count2 (line 30) grows by up to O(N)",
+            "    Total in count3 (line 41) grows by up to O(N)",
+            "    total in share (line 78) grows by up to O(N)",
+            "    total in share1 (line 84) grows by up to O(N)",
+            "",
+            "Warnings:",
+            "    (none)",
+            "");
+    for (int i = 0; i < 10; i++) {
+      check(report("bareBones/parallel.bb").equals(parallel), "the report of parallel.bb to match");
+    }
+    System.out.println("OK");
+  }
+
+  private static String report(String file) throws BareBonesException, IOException {
+    Analyser analyser = new Analyser(new Parser(file));
+    analyser.analyse();
+    StringWriter writer = new StringWriter();
+    analyser.write(writer);
+    return writer.toString();
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
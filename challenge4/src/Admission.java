@@ -0,0 +1,124 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which connections the server accepts and how fast each of them can send messages, so a
+ * single noisy client can't flood everyone else. At most chat.maxConnections clients are connected
+ * at once and any more are closed as soon as they are accepted, with chat.backlog more waiting to
+ * be accepted.
+ *
+ * <p>Every connection can send chat.rate.connection messages per second and every username
+ * chat.rate.user messages per second between all of its connections, in bursts of up to twice that
+ * or chat.rate.connection.burst and chat.rate.user.burst. A rate of 0 turns the limit off. Messages
+ * over the limit are dropped. How many connections and messages were rejected is reported by the
+ * {@link Metrics}.
+ */
+public class Admission {
+  private static final Admission shared = new Admission();
+
+  static final int MAX_CONNECTIONS = Integer.getInteger("chat.maxConnections", 10_000);
+  static final int BACKLOG = Integer.getInteger("chat.backlog", 1024);
+  private static final double CONNECTION_RATE = rate("chat.rate.connection", 200);
+  private static final double CONNECTION_BURST = burst("chat.rate.connection", CONNECTION_RATE);
+  private static final double USER_RATE = rate("chat.rate.user", 400);
+  private static final double USER_BURST = burst("chat.rate.user", USER_RATE);
+
+  private final AtomicInteger connections = new AtomicInteger();
+  private final ConcurrentHashMap<String, UserLimit> users = new ConcurrentHashMap<>();
+  private final LongAdder rejectedConnections = new LongAdder();
+  private final LongAdder limitedByConnection = new LongAdder();
+  private final LongAdder limitedByUser = new LongAdder();
+
+  public static Admission shared() {
+    return shared;
+  }
+
+  /**
+   * Takes one of the connection slots, which has to be given back with {@link #closed()}.
+   *
+   * @return false if the server is full and the connection should be closed.
+   */
+  public boolean admit() {
+    if (connections.incrementAndGet() > MAX_CONNECTIONS) {
+      connections.decrementAndGet();
+      rejectedConnections.increment();
+      return false;
+    }
+    return true;
+  }
+
+  public void closed() {
+    connections.decrementAndGet();
+  }
+
+  /** @return The limit for a new connection, or null if connections are not limited. */
+  TokenBucket connectionLimit() {
+    return CONNECTION_RATE > 0 ? new TokenBucket(CONNECTION_RATE, CONNECTION_BURST) : null;
+  }
+
+  /**
+   * @return The limit shared by every connection of the user, which has to be given back with
+   *     {@link #leave(String)}, or null if users are not limited.
+   */
+  TokenBucket join(String username) {
+    if (USER_RATE <= 0) {
+      return null;
+    }
+    UserLimit limit =
+        users.compute(
+            username,
+            (name, existing) -> {
+              UserLimit joined = existing != null ? existing : new UserLimit();
+              joined.connections += 1;
+              return joined;
+            });
+    return limit.bucket;
+  }
+
+  void leave(String username) {
+    users.computeIfPresent(username, (name, limit) -> --limit.connections == 0 ? null : limit);
+  }
+
+  /**
+   * @param connection The limit of the connection sending the message, or null.
+   * @param user The limit of the user sending the message, or null.
+   * @return Whether the message can be sent, counting it as rejected if not.
+   */
+  boolean allow(TokenBucket connection, TokenBucket user) {
+    if (connection != null && !connection.tryAcquire()) {
+      limitedByConnection.increment();
+      return false;
+    }
+    if (user != null && !user.tryAcquire()) {
+      limitedByUser.increment();
+      return false;
+    }
+    return true;
+  }
+
+  long rejectedConnections() {
+    return rejectedConnections.sum();
+  }
+
+  long limitedByConnection() {
+    return limitedByConnection.sum();
+  }
+
+  long limitedByUser() {
+    return limitedByUser.sum();
+  }
+
+  private static double rate(String property, double fallback) {
+    return Double.parseDouble(System.getProperty(property, String.valueOf(fallback)));
+  }
+
+  private static double burst(String property, double rate) {
+    return rate(property + ".burst", Math.max(1, rate * 2));
+  }
+
+  private static final class UserLimit {
+    final TokenBucket bucket = new TokenBucket(USER_RATE, USER_BURST);
+    int connections = 0;
+  }
+}
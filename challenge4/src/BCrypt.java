@@ -355,9 +355,17 @@ public class BCrypt {
     53, -1, -1, -1, -1, -1
   };
 
+  // Every thread reuses its own instance so the key schedule is never reallocated.
+  private static final ThreadLocal<BCrypt> instances = ThreadLocal.withInitial(BCrypt::new);
+
   // Expanded Blowfish key
-  private int P[];
-  private int S[];
+  private final int P[] = new int[P_orig.length];
+  private final int S[] = new int[S_orig.length];
+  private final int lr[] = new int[2];
+  private final int cdata[] = new int[bf_crypt_ciphertext.length];
+  // The password and salt turned into the words that are mixed into the key schedule.
+  private final int passwordWords[] = new int[P_orig.length];
+  private final int saltWords[] = new int[P_orig.length];
 
   /**
    * Encode a byte array using bcrypt's slightly-modified base64 encoding scheme. Note that this is
@@ -513,7 +521,7 @@ public class BCrypt {
 
     saltb = decode_base64(real_salt, BCRYPT_SALT_LEN);
 
-    B = new BCrypt();
+    B = instances.get();
     hashed = B.crypt_raw(passwordb, saltb, rounds);
 
     rs.append("$2");
@@ -612,23 +620,35 @@ public class BCrypt {
 
   /** Initialise the Blowfish key schedule */
   private void init_key() {
-    P = (int[]) P_orig.clone();
-    S = (int[]) S_orig.clone();
+    System.arraycopy(P_orig, 0, P, 0, P.length);
+    System.arraycopy(S_orig, 0, S, 0, S.length);
+  }
+
+  /**
+   * Fill words with the cyclic stream of words made from data, which is exactly what the key
+   * schedule would extract from it each time it starts reading at the beginning.
+   *
+   * @param data the bytes to take words from
+   * @param words the array to fill
+   */
+  private static void towords(byte data[], int words[]) {
+    int offp[] = {0};
+    for (int i = 0; i < words.length; i++) words[i] = streamtoword(data, offp);
   }
 
   /**
    * Key the Blowfish cipher
    *
-   * @param key an array containing the key
+   * @param words the first P.length words of the key
    */
-  private void key(byte key[]) {
+  private void key(int words[]) {
     int i;
-    int koffp[] = {0};
-    int lr[] = {0, 0};
     int plen = P.length, slen = S.length;
 
-    for (i = 0; i < plen; i++) P[i] = P[i] ^ streamtoword(key, koffp);
+    for (i = 0; i < plen; i++) P[i] = P[i] ^ words[i];
 
+    lr[0] = 0;
+    lr[1] = 0;
     for (i = 0; i < plen; i += 2) {
       encipher(lr, 0);
       P[i] = lr[0];
@@ -646,28 +666,29 @@ public class BCrypt {
    * Perform the "enhanced key schedule" step described by Provos and Mazieres in "A
    * Future-Adaptable Password Scheme" http://www.openbsd.org/papers/bcrypt-paper.ps
    *
-   * @param data salt information
+   * @param data salt information, which is always BCRYPT_SALT_LEN bytes so its words repeat every
+   *     four words
    * @param key password information
    */
-  private void ekskey(byte data[], byte key[]) {
-    int i;
-    int koffp[] = {0}, doffp[] = {0};
-    int lr[] = {0, 0};
+  private void ekskey(int data[], int key[]) {
+    int i, d = 0;
     int plen = P.length, slen = S.length;
 
-    for (i = 0; i < plen; i++) P[i] = P[i] ^ streamtoword(key, koffp);
+    for (i = 0; i < plen; i++) P[i] = P[i] ^ key[i];
 
+    lr[0] = 0;
+    lr[1] = 0;
     for (i = 0; i < plen; i += 2) {
-      lr[0] ^= streamtoword(data, doffp);
-      lr[1] ^= streamtoword(data, doffp);
+      lr[0] ^= data[d++ & 3];
+      lr[1] ^= data[d++ & 3];
       encipher(lr, 0);
       P[i] = lr[0];
       P[i + 1] = lr[1];
     }
 
     for (i = 0; i < slen; i += 2) {
-      lr[0] ^= streamtoword(data, doffp);
-      lr[1] ^= streamtoword(data, doffp);
+      lr[0] ^= data[d++ & 3];
+      lr[1] ^= data[d++ & 3];
       encipher(lr, 0);
       S[i] = lr[0];
       S[i + 1] = lr[1];
@@ -684,7 +705,6 @@ public class BCrypt {
    */
   private byte[] crypt_raw(byte password[], byte salt[], int log_rounds) {
     int rounds, i, j;
-    int cdata[] = (int[]) bf_crypt_ciphertext.clone();
     int clen = cdata.length;
     byte ret[];
 
@@ -693,11 +713,14 @@ public class BCrypt {
     rounds = 1 << log_rounds;
     if (salt.length != BCRYPT_SALT_LEN) throw new IllegalArgumentException("Bad salt length");
 
+    System.arraycopy(bf_crypt_ciphertext, 0, cdata, 0, clen);
+    towords(password, passwordWords);
+    towords(salt, saltWords);
     init_key();
-    ekskey(salt, password);
+    ekskey(saltWords, passwordWords);
     for (i = 0; i < rounds; i++) {
-      key(password);
-      key(salt);
+      key(passwordWords);
+      key(saltWords);
     }
 
     for (i = 0; i < 64; i++) {
@@ -0,0 +1,126 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes passwords on a small pool of worker threads so that nothing reading or writing sockets has
+ * to wait tens of milliseconds for BCrypt. Results are cached by password and salt, and asking for
+ * a hash that is already being worked on shares the same result rather than hashing it twice.
+ *
+ * <p>Both the pool and the cache are bounded. The pool has one thread per core (or
+ * chat.bcrypt.threads) and queues at most chat.bcrypt.queue hashes, beyond which hashes fail with
+ * a RejectedExecutionException. The cache keeps the chat.bcrypt.cache most recently used results.
+ */
+public class BCryptService {
+  private static final BCryptService shared = new BCryptService();
+
+  private final ThreadPoolExecutor executor;
+  private final Map<Key, CompletableFuture<String>> cache;
+
+  public BCryptService() {
+    this(
+        Integer.getInteger("chat.bcrypt.threads", Runtime.getRuntime().availableProcessors()),
+        Integer.getInteger("chat.bcrypt.queue", 1024),
+        Integer.getInteger("chat.bcrypt.cache", 1024));
+  }
+
+  public BCryptService(int threads, int queueSize, int cacheSize) {
+    executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            runnable -> {
+              Thread thread = new Thread(runnable, "bcrypt");
+              thread.setDaemon(true);
+              return thread;
+            });
+    cache =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<Key, CompletableFuture<String>> eldest) {
+            return size() > cacheSize;
+          }
+        };
+  }
+
+  public static BCryptService shared() {
+    return shared;
+  }
+
+  /** @return The hash of the password, which completes on one of the worker threads. */
+  public CompletableFuture<String> hash(String password, String salt) {
+    Key key = new Key(password, BCryptService.salt(salt));
+    CompletableFuture<String> result;
+    synchronized (cache) {
+      result = cache.get(key);
+      if (result != null) {
+        return result;
+      }
+      result = new CompletableFuture<>();
+      cache.put(key, result);
+    }
+    CompletableFuture<String> pending = result;
+    try {
+      executor.execute(
+          () -> {
+            try {
+              pending.complete(BCrypt.hashpw(key.password, key.salt));
+            } catch (RuntimeException e) {
+              forget(key, pending);
+              pending.completeExceptionally(e);
+            }
+          });
+    } catch (RuntimeException e) {
+      forget(key, pending);
+      pending.completeExceptionally(e);
+    }
+    return pending;
+  }
+
+  /** @return Whether the password matches the hash, using the cache like {@link #hash}. */
+  public CompletableFuture<Boolean> check(String plaintext, String hashed) {
+    return hash(plaintext, hashed).thenApply(hashed::equals);
+  }
+
+  /** Failures are not cached so that the hash can be tried again. */
+  private void forget(Key key, CompletableFuture<String> result) {
+    synchronized (cache) {
+      cache.remove(key, result);
+    }
+  }
+
+  /** @return Only the salt part of a salt or of a full hash, so both share the same entries. */
+  private static String salt(String salt) {
+    int length = salt.length() > 2 && salt.charAt(2) == '$' ? 28 : 29;
+    return salt.length() > length ? salt.substring(0, length) : salt;
+  }
+
+  private static final class Key {
+    private final String password;
+    private final String salt;
+
+    Key(String password, String salt) {
+      this.password = password;
+      this.salt = salt;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(password, salt);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Key
+          && password.equals(((Key) o).password)
+          && salt.equals(((Key) o).salt);
+    }
+  }
+}
@@ -0,0 +1,422 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+
+/**
+ * Small benchmarks for the parts of the server that have to be fast. Each one can be run on its
+ * own by passing its name, or all of them by passing nothing.
+ */
+public class Benchmark {
+
+  public static void main(String[] args) throws Exception {
+    String name = args.length > 0 ? args[0] : "all";
+    if (name.equals("all") || name.equals("fanout")) {
+      for (int subscribers : new int[] {1, 100, 10_000}) {
+        fanOut(subscribers, false);
+        fanOut(subscribers, true);
+      }
+    }
+    if (name.equals("all") || name.equals("codec")) {
+      codec();
+    }
+    if (name.equals("all") || name.equals("decode")) {
+      decode();
+    }
+    if (name.equals("all") || name.equals("log")) {
+      log(4);
+    }
+    if (name.equals("all") || name.equals("cipher")) {
+      for (int length : new int[] {32, 1024, 16 * 1024}) {
+        cipher(length);
+      }
+    }
+    if (name.equals("all") || name.equals("bcrypt")) {
+      bcrypt();
+    }
+    if (name.equals("all") || name.equals("cluster")) {
+      for (int nodes = 1; nodes <= 3; nodes++) {
+        cluster(nodes);
+      }
+    }
+  }
+
+  /**
+   * Starts a cluster of NIO servers in this process and runs the {@link LoadGenerator} with its
+   * clients spread over every node, reporting the throughput of the whole cluster.
+   */
+  static void cluster(int nodes) throws Exception {
+    // Every run uses new ports as the servers of earlier runs keep running.
+    int port = 3100 + nodes * 10;
+    String salt = BCrypt.gensalt(4);
+    List<Cluster> clusters = new ArrayList<>();
+    int[] ports = new int[nodes];
+    for (int node = 0; node < nodes; node++) {
+      List<InetSocketAddress> peers = new ArrayList<>();
+      for (int peer = 0; peer < nodes; peer++) {
+        if (peer != node) {
+          peers.add(new InetSocketAddress("localhost", port + 1000 + peer));
+        }
+      }
+      MessageStore store =
+          new MessageStore(Files.createTempDirectory("cluster"), 1 << 20, 2, 4096);
+      State state = new State(store, node);
+      ports[node] = port + node;
+      NioServer server = new NioServer(ports[node], salt, state);
+      Cluster cluster = new Cluster(node, state, port + 1000 + node, peers);
+      cluster.start();
+      clusters.add(cluster);
+      Thread thread =
+          new Thread(
+              () -> {
+                try {
+                  server.run();
+                } catch (IOException e) {
+                  e.printStackTrace();
+                }
+              });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    for (Cluster cluster : clusters) {
+      while (cluster.connectedPeers() < nodes - 1) {
+        Thread.sleep(10);
+      }
+    }
+    System.out.println("cluster nodes=" + nodes + ":");
+    double throughput = new LoadGenerator(30, 20, 5, ports).run();
+    System.out.printf("cluster nodes=%d: %.0f msg/s in total%n", nodes, throughput);
+  }
+
+  /**
+   * Logs a message from several threads at once, first by printing each one to a file through a
+   * synchronised {@link PrintStream} like the handlers used to print to the console, and then
+   * through an {@link EventLog}. The time the logging threads spend is what holds up clients, but
+   * the event log is also timed until everything that was not dropped has been written.
+   */
+  static void log(int threads) throws Exception {
+    int events = 200_000;
+    String text = "Hello everyone, how is it going?";
+    Path directory = Files.createTempDirectory("events");
+    for (int round = 0; round < 2; round++) {
+      // The first round only warms up the JIT.
+      try (PrintStream out =
+          new PrintStream(
+              new BufferedOutputStream(
+                  new FileOutputStream(directory.resolve("print.log").toFile())))) {
+        long printNanos =
+            runThreads(
+                threads, thread -> {
+                  for (int i = 0; i < events; i++) {
+                    out.println("[user" + thread + "]: " + text);
+                  }
+                });
+        EventLog log = new EventLog(directory.resolve("events.log"), 8192, 0);
+        long start = System.nanoTime();
+        long logNanos =
+            runThreads(
+                threads, thread -> {
+                  for (int i = 0; i < events; i++) {
+                    log.record(EventLog.Event.MESSAGE, thread, "user" + thread, null, text);
+                  }
+                });
+        long logged = (long) threads * events - log.droppedEvents();
+        while (log.written() < logged) {
+          Thread.sleep(1);
+        }
+        long writtenNanos = System.nanoTime() - start;
+        if (round == 1) {
+          double total = (double) threads * events;
+          System.out.printf(
+              "log events per second from %d threads: println %.0f, event log %.0f (%.0f written,"
+                  + " %d dropped)%n",
+              threads,
+              total / printNanos * 1e9,
+              total / logNanos * 1e9,
+              logged / (double) writtenNanos * 1e9,
+              log.droppedEvents());
+        }
+      }
+    }
+  }
+
+  /** @return How long it took for every thread to run the task, given its number. */
+  private static long runThreads(int threads, IntConsumer task) throws InterruptedException {
+    Thread[] started = new Thread[threads];
+    long start = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      int thread = i;
+      started[i] = new Thread(() -> task.accept(thread));
+      started[i].start();
+    }
+    for (Thread thread : started) {
+      thread.join();
+    }
+    return System.nanoTime() - start;
+  }
+
+  /**
+   * Encrypts messages of the given length with the rot cipher of the {@link Client} and then seals
+   * them into frames with a {@link MessageCipher}, whose key is derived once beforehand.
+   */
+  static void cipher(int length) throws Exception {
+    String password = "hunter2";
+    MessageCipher cipher = new MessageCipher(password, BCrypt.hashpw(password, BCrypt.gensalt(4)));
+    char[] chars = new char[length];
+    Arrays.fill(chars, 'a');
+    String text = new String(chars);
+    int messages = Math.max(1000, 20_000_000 / length);
+    for (int round = 0; round < 2; round++) {
+      // The first round only warms up the JIT.
+      long sink = 0;
+      long start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+        sink += Client.plainToEncrypted(password, text).length();
+      }
+      long rotNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      for (int i = 0; i < messages; i++) {
+        Frame frame = cipher.seal(text);
+        sink += frame.size();
+        frame.release();
+      }
+      long sealNanos = System.nanoTime() - start;
+      if (round == 1) {
+        double megabytes = (double) messages * length / (1 << 20);
+        System.out.printf(
+            "cipher %d chars: rot %.0f MB/s, AES-GCM %.0f MB/s (%d)%n",
+            length, megabytes / rotNanos * 1e9, megabytes / sealNanos * 1e9, sink % 10);
+      }
+    }
+  }
+
+  /**
+   * Hashes distinct passwords first on a single thread and then through the {@link BCryptService}
+   * with one worker per core, so the cache never hits.
+   */
+  static void bcrypt() {
+    int cores = Runtime.getRuntime().availableProcessors();
+    String salt = BCrypt.gensalt(8);
+    int hashes = 64;
+    BCrypt.hashpw("warm up", salt);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < hashes; i++) {
+      BCrypt.hashpw("password" + i, salt);
+    }
+    double single = hashes / ((System.nanoTime() - start) / 1e9);
+
+    BCryptService service = new BCryptService(cores, hashes, hashes);
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    start = System.nanoTime();
+    for (int i = 0; i < hashes * cores; i += 1) {
+      results.add(service.hash("pool" + i, salt));
+      if (results.size() == hashes) {
+        results.forEach(CompletableFuture::join);
+        results.clear();
+      }
+    }
+    results.forEach(CompletableFuture::join);
+    double pooled = hashes * cores / ((System.nanoTime() - start) / 1e9);
+    System.out.printf(
+        "bcrypt log_rounds=8: %.1f hashes/s on one thread, %.1f hashes/s per core with %d"
+            + " workers%n",
+        single, pooled / cores, cores);
+  }
+
+  /** Compares Java serialization against the BinaryCodec for a typical encrypted message. */
+  static void codec() throws Exception {
+    Message message =
+        new Message(
+            BCrypt.hashpw("password", BCrypt.gensalt(4)), "Hello everyone, how is it going?");
+    message.user = 12;
+    int iterations = 200_000;
+
+    byte[] serialized = MessageToByte.receivedMessage(message);
+    byte[] binary = BinaryCodec.message(MessageId.MESSAGE_RECEIVED, message);
+    System.out.printf(
+        "codec bytes on the wire: serialization=%d binary=%d%n", serialized.length, binary.length);
+
+    long sink = 0;
+    for (int round = 0; round < 2; round++) {
+      // The first round only warms up the JIT.
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sink += MessageToByte.receivedMessage(message).length;
+      }
+      long serializeEncode = (System.nanoTime() - start) / iterations;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        byte[] data = Arrays.copyOfRange(serialized, 5, serialized.length);
+        sink += ByteToMessage.receivedMessage(data).user;
+      }
+      long serializeDecode = (System.nanoTime() - start) / iterations;
+
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        ByteBuffer frame = BufferPool.acquire(BinaryCodec.messageSize(message));
+        BinaryCodec.putMessage(frame, MessageId.MESSAGE_RECEIVED, message);
+        sink += frame.position();
+        BufferPool.release(frame);
+      }
+      long binaryEncode = (System.nanoTime() - start) / iterations;
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; i++) {
+        sink += BinaryCodec.getMessage(ByteBuffer.wrap(binary, 5, binary.length - 5)).user;
+      }
+      long binaryDecode = (System.nanoTime() - start) / iterations;
+      if (round == 1) {
+        System.out.printf(
+            "codec ns per message: serialization encode=%d decode=%d, binary encode=%d decode=%d"
+                + " (%d)%n",
+            serializeEncode, serializeDecode, binaryEncode, binaryDecode, sink % 10);
+      }
+    }
+  }
+
+  /**
+   * Splits a stream of message frames with the {@link FrameDecoder} and, for comparison, by reading
+   * each frame into a new array like the servers used to. The bytes allocated per frame are
+   * measured with the thread's allocation counter, which should stay at zero for the decoder.
+   */
+  static void decode() throws Exception {
+    Message message = new Message(12, "Hello everyone, how is it going?");
+    byte[] frame = BinaryCodec.message(MessageId.MESSAGE_RECEIVED, message);
+    int frames = 10_000;
+    byte[] stream = new byte[frame.length * frames];
+    for (int i = 0; i < frames; i++) {
+      System.arraycopy(frame, 0, stream, i * frame.length, frame.length);
+    }
+    ByteArrayInputStream input = new ByteArrayInputStream(stream);
+    long[] sink = new long[1];
+    FrameDecoder decoder = new FrameDecoder((id, data) -> sink[0] += data.getInt(data.position()));
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    int rounds = 200;
+    for (int round = 0; round < 2; round++) {
+      // The first round only warms up the JIT.
+      long allocated = threads.getThreadAllocatedBytes(thread);
+      long start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        input.reset();
+        while (decoder.read(input) > 0) {
+          decoder.decode();
+        }
+      }
+      long decoderNanos = System.nanoTime() - start;
+      long decoderBytes = threads.getThreadAllocatedBytes(thread) - allocated;
+
+      allocated = threads.getThreadAllocatedBytes(thread);
+      start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        input.reset();
+        DataInputStream is = new DataInputStream(input);
+        byte[] header = new byte[5];
+        for (int j = 0; j < frames; j++) {
+          is.readFully(header);
+          byte[] data = new byte[ByteToMessage.integer(header)];
+          is.readFully(data);
+          sink[0] += data[0];
+        }
+      }
+      long arrayNanos = System.nanoTime() - start;
+      long arrayBytes = threads.getThreadAllocatedBytes(thread) - allocated;
+      if (round == 1) {
+        double total = (double) rounds * frames;
+        System.out.printf(
+            "decode per frame: decoder %.1f ns %.2f bytes allocated, new arrays %.1f ns %.2f"
+                + " bytes allocated (%d)%n",
+            decoderNanos / total,
+            decoderBytes / total,
+            arrayNanos / total,
+            arrayBytes / total,
+            sink[0] % 10);
+      }
+    }
+    decoder.close();
+  }
+
+  /**
+   * One thread publishes into a {@link BroadcastLog} whilst one reader per core polls an equal
+   * share of the subscribers' cursors, either one item at a time or draining them in batches.
+   */
+  static void fanOut(int subscribers, boolean batched) throws InterruptedException {
+    BroadcastLog<Integer> log = new BroadcastLog<>(4096);
+    int messages = Math.min(1_000_000, 10_000_000 / subscribers);
+    int readers = Math.min(subscribers, Runtime.getRuntime().availableProcessors());
+    List<BroadcastLog.Cursor> cursors = new ArrayList<>();
+    for (int i = 0; i < subscribers; i++) {
+      cursors.add(log.subscribe());
+    }
+    Integer item = 42;
+    long[] received = new long[readers];
+    List<Thread> threads = new ArrayList<>();
+    for (int r = 0; r < readers; r++) {
+      int reader = r;
+      Thread thread =
+          new Thread(
+              () -> {
+                List<BroadcastLog.Cursor> own = new ArrayList<>();
+                Integer[] batch = new Integer[64];
+                for (int i = reader; i < subscribers; i += readers) {
+                  own.add(cursors.get(i));
+                }
+                long count = 0;
+                boolean finished = false;
+                while (!finished) {
+                  finished = true;
+                  for (BroadcastLog.Cursor cursor : own) {
+                    if (batched) {
+                      int drained;
+                      while ((drained = log.drain(cursor, batch)) > 0) {
+                        count += drained;
+                      }
+                    } else {
+                      while (log.poll(cursor) != null) {
+                        count += 1;
+                      }
+                    }
+                    if (cursor.next < messages) {
+                      finished = false;
+                    }
+                  }
+                }
+                received[reader] = count;
+              });
+      threads.add(thread);
+    }
+    long start = System.nanoTime();
+    threads.forEach(Thread::start);
+    for (int i = 0; i < messages; i++) {
+      log.publish(item);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - start;
+    long delivered = 0;
+    for (long count : received) {
+      delivered += count;
+    }
+    long dropped = 0;
+    for (BroadcastLog.Cursor cursor : cursors) {
+      dropped += cursor.dropped();
+    }
+    System.out.printf(
+        "fanout %s subscribers=%d messages=%d: %.1f M deliveries/s, %d dropped%n",
+        batched ? "drain" : "poll", subscribers, messages, delivered / (elapsed / 1e3), dropped);
+  }
+}
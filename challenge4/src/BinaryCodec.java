@@ -0,0 +1,263 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact alternative to Java serialization for the frames that carry a {@link Message} or the
+ * user list. Clients opt into it by sending a {@link MessageId#CODEC} frame before INIT, so clients
+ * that don't know about it keep receiving serialized objects.
+ *
+ * <p>A message is encoded as its user id, flags saying whether a password hash and a room follow,
+ * the hash and the room each prefixed by its length as a short and finally the UTF-8 body, or the
+ * encrypted body of a {@link MessageCipher} if the message is sealed. The user list is the number
+ * of users followed by each id and its length prefixed username.
+ */
+public class BinaryCodec {
+  public static final byte VERSION = 1;
+  /** The most UTF-8 bytes a password hash, room or username can have to fit its length prefix. */
+  public static final int MAX_STRING_BYTES = 0xffff;
+  private static final int HEADER = 5;
+  private static final byte HAS_PASSWORD_HASH = 1;
+  private static final byte HAS_ROOM = 2;
+  private static final byte SEALED = 4;
+
+  /** @return The size of the whole frame including its header. */
+  public static int messageSize(Message message) {
+    int body = message.sealed != null ? message.sealed.length : utf8Length(message.message);
+    int size = HEADER + 4 + 1 + body;
+    if (message.passwordHash != null) {
+      size += 2 + utf8Length(message.passwordHash);
+    }
+    if (message.room != null) {
+      size += 2 + utf8Length(message.room);
+    }
+    return size;
+  }
+
+  /** Writes a whole frame for the message, header included, into the buffer. */
+  public static void putMessage(ByteBuffer out, MessageId id, Message message) {
+    int start = out.position();
+    out.putInt(0).put((byte) id.ordinal());
+    out.putInt(message.user);
+    byte flags = 0;
+    if (message.passwordHash != null) {
+      flags |= HAS_PASSWORD_HASH;
+    }
+    if (message.room != null) {
+      flags |= HAS_ROOM;
+    }
+    if (message.sealed != null) {
+      flags |= SEALED;
+    }
+    out.put(flags);
+    if (message.passwordHash != null) {
+      putShortString(out, message.passwordHash);
+    }
+    if (message.room != null) {
+      putShortString(out, message.room);
+    }
+    if (message.sealed != null) {
+      out.put(message.sealed);
+    } else {
+      putUtf8(out, message.message);
+    }
+    out.putInt(start, out.position() - start - HEADER);
+  }
+
+  /** @return The size of a whole sealed message frame sent with the password, header included. */
+  public static int sealedMessageSize(String passwordHash, int sealedBytes) {
+    return HEADER + 4 + 1 + 2 + utf8Length(passwordHash) + sealedBytes;
+  }
+
+  /**
+   * Writes everything of a sealed message frame sent with the password but its body, which has to
+   * be written straight after and be exactly sealedBytes long.
+   */
+  public static void putSealedHeader(
+      ByteBuffer out, MessageId id, String passwordHash, int sealedBytes) {
+    int start = out.position();
+    out.putInt(0).put((byte) id.ordinal());
+    out.putInt(0);
+    out.put((byte) (HAS_PASSWORD_HASH | SEALED));
+    putShortString(out, passwordHash);
+    out.putInt(start, out.position() - start - HEADER + sealedBytes);
+  }
+
+  public static Message getMessage(ByteBuffer data) {
+    int user = data.getInt();
+    byte flags = data.get();
+    String passwordHash = null;
+    String room = null;
+    if ((flags & HAS_PASSWORD_HASH) != 0) {
+      passwordHash = getUtf8(data, data.getShort() & 0xffff);
+    }
+    if ((flags & HAS_ROOM) != 0) {
+      room = getUtf8(data, data.getShort() & 0xffff);
+    }
+    Message message;
+    if ((flags & SEALED) != 0) {
+      message = new Message(passwordHash, null);
+      message.sealed = new byte[data.remaining()];
+      data.get(message.sealed);
+    } else {
+      message = new Message(passwordHash, getUtf8(data, data.remaining()));
+    }
+    message.user = user;
+    message.room = room;
+    return message;
+  }
+
+  /** @return The user of a whole message frame without decoding the rest of it. */
+  public static int messageUser(ByteBuffer frame) {
+    return frame.getInt(frame.position() + HEADER);
+  }
+
+  /** @return Whether a whole message frame is sealed, without decoding the rest of it. */
+  public static boolean isSealed(ByteBuffer frame) {
+    return (frame.get(frame.position() + HEADER + 4) & SEALED) != 0;
+  }
+
+  /**
+   * @return The name of the {@link Room} a whole message frame was sent to, which is its password
+   *     hash if it is encrypted, without decoding the rest of it.
+   */
+  public static String messageRoom(ByteBuffer frame) {
+    int start = frame.position() + HEADER + 4;
+    byte flags = frame.get(start);
+    if ((flags & (HAS_PASSWORD_HASH | HAS_ROOM)) == 0) {
+      return Room.LOBBY;
+    }
+    // The password hash comes first so is always the first string when there is one.
+    ByteBuffer name = frame.duplicate().position(start + 3);
+    return getUtf8(name, frame.getShort(start + 1) & 0xffff);
+  }
+
+  public static int userListSize(Map<Integer, String> userList) {
+    int size = HEADER + 4;
+    for (String username : userList.values()) {
+      size += 4 + 2 + utf8Length(username);
+    }
+    return size;
+  }
+
+  public static void putUserList(ByteBuffer out, Map<Integer, String> userList) {
+    int start = out.position();
+    out.putInt(0).put((byte) MessageId.LIST_USER.ordinal());
+    out.putInt(userList.size());
+    for (Map.Entry<Integer, String> user : userList.entrySet()) {
+      out.putInt(user.getKey());
+      putShortString(out, user.getValue());
+    }
+    out.putInt(start, out.position() - start - HEADER);
+  }
+
+  public static HashMap<Integer, String> getUserList(ByteBuffer data) {
+    int count = data.getInt();
+    HashMap<Integer, String> userList = new HashMap<>();
+    for (int i = 0; i < count; i++) {
+      int id = data.getInt();
+      userList.put(id, getUtf8(data, data.getShort() & 0xffff));
+    }
+    return userList;
+  }
+
+  /** Convenience for callers that want the frame as an array, such as the console client. */
+  public static byte[] message(MessageId id, Message message) {
+    ByteBuffer out = ByteBuffer.allocate(messageSize(message));
+    putMessage(out, id, message);
+    return out.array();
+  }
+
+  public static byte[] userList(Map<Integer, String> userList) {
+    ByteBuffer out = ByteBuffer.allocate(userListSize(userList));
+    putUserList(out, userList);
+    return out.array();
+  }
+
+  /** @return Whether the string is short enough to be written with a length prefix. */
+  public static boolean fitsShort(String string) {
+    return utf8Length(string) <= MAX_STRING_BYTES;
+  }
+
+  /**
+   * Writes the string prefixed by its length as a short.
+   *
+   * @throws IllegalArgumentException If the string is longer than {@link #MAX_STRING_BYTES}, rather
+   *     than letting the length wrap around and corrupt the frame.
+   */
+  private static void putShortString(ByteBuffer out, String string) {
+    int length = utf8Length(string);
+    if (length > MAX_STRING_BYTES) {
+      throw new IllegalArgumentException("String of " + length + " bytes is too long to encode.");
+    }
+    out.putShort((short) length);
+    putUtf8(out, string);
+  }
+
+  static int utf8Length(String string) {
+    int length = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        length += 1;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        length += 4;
+        i += 1;
+      } else if (Character.isSurrogate(c)) {
+        length += 1;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  /** Encodes straight into the buffer rather than going through a temporary byte array. */
+  static void putUtf8(ByteBuffer out, String string) {
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (c < 0x80) {
+        out.put((byte) c);
+      } else if (c < 0x800) {
+        out.put((byte) (0xc0 | (c >> 6)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      } else if (Character.isHighSurrogate(c)
+          && i + 1 < string.length()
+          && Character.isLowSurrogate(string.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, string.charAt(i + 1));
+        out.put((byte) (0xf0 | (codePoint >> 18)));
+        out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+        out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+        out.put((byte) (0x80 | (codePoint & 0x3f)));
+        i += 1;
+      } else if (Character.isSurrogate(c)) {
+        // Same as String.getBytes which replaces unpaired surrogates.
+        out.put((byte) '?');
+      } else {
+        out.put((byte) (0xe0 | (c >> 12)));
+        out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+        out.put((byte) (0x80 | (c & 0x3f)));
+      }
+    }
+  }
+
+  static String getUtf8(ByteBuffer data, int length) {
+    String string;
+    if (data.hasArray()) {
+      string =
+          new String(
+              data.array(), data.arrayOffset() + data.position(), length, StandardCharsets.UTF_8);
+    } else {
+      byte[] bytes = new byte[length];
+      data.duplicate().get(bytes);
+      string = new String(bytes, StandardCharsets.UTF_8);
+    }
+    data.position(data.position() + length);
+    return string;
+  }
+}
@@ -0,0 +1,239 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A fixed size ring buffer that every subscriber reads through its own cursor, a bit like the
+ * LMAX Disruptor. Neither publishing nor reading takes a lock. Slots are simply reused in order,
+ * so nothing ever has to be shifted or cleared. A publisher never waits for slow subscribers,
+ * instead a subscriber that has been lapped skips ahead to the oldest message still in the buffer
+ * and counts what it dropped. Logs can opt into waiting a short while for the slowest cursor before
+ * overwriting its slot, which every publisher then pays for whenever a subscriber falls behind.
+ */
+public class BroadcastLog<T> {
+  private static final long INVALID = -1;
+
+  private final int mask;
+  private final AtomicReferenceArray<T> items;
+  private final AtomicLongArray sequences;
+  private final AtomicLong claimed = new AtomicLong(-1);
+  // Highest sequence that has been fully written, everything before it has been written too.
+  private final AtomicLong published = new AtomicLong(-1);
+  // Only kept when publishers wait for the slowest cursor.
+  private final CopyOnWriteArrayList<Cursor> cursors = new CopyOnWriteArrayList<>();
+  private volatile long gatingSequence = 0;
+  private final long maxWaitNanos;
+  private final Consumer<T> onOverwrite;
+
+  /** @param capacity The number of slots, rounded up to a power of two. */
+  public BroadcastLog(int capacity) {
+    this(capacity, 0, null);
+  }
+
+  /**
+   * @param capacity The number of slots, rounded up to a power of two.
+   * @param onOverwrite Called with every item that is pushed out of the buffer by a newer one.
+   */
+  public BroadcastLog(int capacity, Consumer<T> onOverwrite) {
+    this(capacity, 0, onOverwrite);
+  }
+
+  /**
+   * @param capacity The number of slots, rounded up to a power of two.
+   * @param maxWaitNanos How long a publisher waits for the slowest cursor before overwriting a slot
+   *     it has not read yet, or 0 to never wait.
+   * @param onOverwrite Called with every item that is pushed out of the buffer by a newer one.
+   */
+  public BroadcastLog(int capacity, long maxWaitNanos, Consumer<T> onOverwrite) {
+    this.maxWaitNanos = maxWaitNanos;
+    this.onOverwrite = onOverwrite;
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    mask = size - 1;
+    items = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      sequences.set(i, INVALID);
+    }
+  }
+
+  public int capacity() {
+    return mask + 1;
+  }
+
+  /** @return The sequence number given to the item. */
+  public long publish(T item) {
+    long sequence = claim();
+    publish(sequence, item);
+    return sequence;
+  }
+
+  /**
+   * Reserves the next sequence number without waiting for anything, so it can be done whilst
+   * holding a lock. Cursors subscribed from now on start after it. Every later item waits for this
+   * one, so it has to be published with {@link #publish(long, Object)} straight away.
+   */
+  public long claim() {
+    return claimed.incrementAndGet();
+  }
+
+  /** Publishes the item with a sequence number that was reserved with {@link #claim()}. */
+  public void publish(long sequence, T item) {
+    awaitSlowestCursor(sequence);
+    int index = (int) (sequence & mask);
+    sequences.set(index, INVALID);
+    T old = items.getAndSet(index, item);
+    sequences.set(index, sequence);
+    if (old != null && onOverwrite != null) {
+      onOverwrite.accept(old);
+    }
+    // Make the item visible only once everything before it is visible too.
+    while (published.get() != sequence - 1) {
+      Thread.onSpinWait();
+    }
+    published.set(sequence);
+  }
+
+  private void awaitSlowestCursor(long sequence) {
+    if (maxWaitNanos == 0 || sequence < gatingSequence + capacity()) {
+      return;
+    }
+    long deadline = System.nanoTime() + maxWaitNanos;
+    while (sequence >= (gatingSequence = slowestCursor(sequence)) + capacity()) {
+      if (System.nanoTime() > deadline) {
+        return;
+      }
+      LockSupport.parkNanos(1000);
+    }
+  }
+
+  private long slowestCursor(long sequence) {
+    long slowest = sequence;
+    for (Cursor cursor : cursors) {
+      slowest = Math.min(slowest, cursor.next);
+    }
+    return slowest;
+  }
+
+  /**
+   * Empties every slot, handing what was in it to onOverwrite, once nobody reads the log any more.
+   * An item published at the same time is either cleared too or overwrites a cleared slot.
+   */
+  public void clear() {
+    for (int i = 0; i <= mask; i++) {
+      sequences.set(i, INVALID);
+      T old = items.getAndSet(i, null);
+      if (old != null && onOverwrite != null) {
+        onOverwrite.accept(old);
+      }
+    }
+  }
+
+  /** @return The highest sequence that can be read, or -1 if nothing has been published. */
+  public long published() {
+    return published.get();
+  }
+
+  /** @return A cursor that will only see items claimed after this call. */
+  public Cursor subscribe() {
+    Cursor cursor = new Cursor(claimed.get() + 1);
+    if (maxWaitNanos > 0) {
+      cursors.add(cursor);
+    }
+    return cursor;
+  }
+
+  public void unsubscribe(Cursor cursor) {
+    cursors.remove(cursor);
+  }
+
+  /**
+   * Reads the next item for a cursor. A cursor must only ever be read from one thread at a time.
+   *
+   * @return The next item or null if the cursor has caught up.
+   */
+  public T poll(Cursor cursor) {
+    while (true) {
+      long sequence = cursor.next;
+      long last = published.get();
+      if (sequence > last) {
+        return null;
+      }
+      if (sequence <= last - capacity()) {
+        skip(cursor, last - capacity() + 1);
+        continue;
+      }
+      int index = (int) (sequence & mask);
+      long before = sequences.get(index);
+      T item = items.get(index);
+      long after = sequences.get(index);
+      if (before == sequence && after == sequence) {
+        cursor.next = sequence + 1;
+        return item;
+      }
+      // Overwritten whilst reading, so we were lapped.
+      skip(cursor, sequence + 1);
+    }
+  }
+
+  /**
+   * Reads as many of the cursor's items as fit into the batch at once. The published sequence is
+   * only read again when the cursor was lapped and the cursor is only moved once at the end, so
+   * the publisher sees the whole batch read at once instead of racing the reader for every item.
+   * A cursor must only ever be read from one thread at a time.
+   *
+   * @return How many items were put at the start of the batch, 0 if the cursor has caught up.
+   */
+  public int drain(Cursor cursor, T[] batch) {
+    int count = 0;
+    long sequence = cursor.next;
+    long last = published.get();
+    while (count < batch.length && sequence <= last) {
+      if (sequence <= last - capacity()) {
+        cursor.dropped += last - capacity() + 1 - sequence;
+        sequence = last - capacity() + 1;
+        continue;
+      }
+      int index = (int) (sequence & mask);
+      long before = sequences.get(index);
+      T item = items.get(index);
+      long after = sequences.get(index);
+      if (before == sequence && after == sequence) {
+        batch[count++] = item;
+      } else {
+        // Overwritten whilst reading, so we were lapped and have to find out by how much.
+        cursor.dropped += 1;
+        last = published.get();
+      }
+      sequence += 1;
+    }
+    cursor.next = sequence;
+    return count;
+  }
+
+  /** @return How many items the cursor has not read yet. */
+  public long lag(Cursor cursor) {
+    return Math.max(0, published.get() + 1 - cursor.next);
+  }
+
+  private static void skip(Cursor cursor, long to) {
+    cursor.dropped += to - cursor.next;
+    cursor.next = to;
+  }
+
+  public static final class Cursor {
+    volatile long next;
+    // Number of items this cursor missed because it was lapped.
+    volatile long dropped;
+
+    Cursor(long next) {
+      this.next = next;
+    }
+
+    public long dropped() {
+      return dropped;
+    }
+  }
+}
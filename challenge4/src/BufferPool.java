@@ -0,0 +1,71 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out reusable heap buffers so that encoding a frame does not have to allocate. Buffers come
+ * in size classes that double from {@link #MIN_SIZE} up to {@link #BUFFER_SIZE} and each request
+ * gets the smallest class it fits in, so a short message only ever holds on to a few hundred bytes.
+ * Buffers that are bigger than {@link #BUFFER_SIZE} are allocated on demand and never pooled.
+ */
+public class BufferPool {
+  public static final int BUFFER_SIZE = 4096;
+  public static final int MIN_SIZE = 256;
+  // For each size class.
+  private static final int MAX_POOLED = 256;
+  private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+  private static final SizeClass[] classes = new SizeClass[classOf(BUFFER_SIZE) + 1];
+
+  static {
+    for (int i = 0; i < classes.length; i++) {
+      classes[i] = new SizeClass(MIN_SIZE << i);
+    }
+  }
+
+  /** @return A cleared buffer with room for at least the given number of bytes. */
+  public static ByteBuffer acquire(int size) {
+    if (size > BUFFER_SIZE) {
+      return ByteBuffer.allocate(size);
+    }
+    SizeClass sizeClass = classes[classOf(size)];
+    ByteBuffer buffer = sizeClass.pool.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocate(sizeClass.size);
+    }
+    sizeClass.pooled.decrementAndGet();
+    return buffer;
+  }
+
+  public static void release(ByteBuffer buffer) {
+    int capacity = buffer.capacity();
+    if (capacity < MIN_SIZE || capacity > BUFFER_SIZE || Integer.bitCount(capacity) != 1) {
+      return;
+    }
+    SizeClass sizeClass = classes[classOf(capacity)];
+    if (sizeClass.pooled.incrementAndGet() > MAX_POOLED) {
+      sizeClass.pooled.updateAndGet(count -> Math.min(count, MAX_POOLED));
+      return;
+    }
+    buffer.clear();
+    sizeClass.pool.offer(buffer);
+  }
+
+  /** @return The index of the smallest size class that fits the given number of bytes. */
+  private static int classOf(int size) {
+    if (size <= MIN_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+  }
+
+  private static final class SizeClass {
+    final int size;
+    final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    final AtomicInteger pooled = new AtomicInteger();
+
+    SizeClass(int size) {
+      this.size = size;
+    }
+  }
+}
@@ -2,6 +2,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
@@ -10,12 +11,27 @@ public class ByteToMessage {
     return new String(data, StandardCharsets.UTF_8);
   }
 
+  /** @return The rest of the data as a string, parsed straight from the buffer. */
+  public static String string(ByteBuffer data) {
+    return BinaryCodec.getUtf8(data, data.remaining());
+  }
+
   public static Message receivedMessage(byte[] data) throws IOException, ClassNotFoundException {
     InputStream is = new ByteArrayInputStream(data);
     ObjectInputStream os = new ObjectInputStream(is);
     return (Message) os.readObject();
   }
 
+  /** Reads the message from the rest of a heap buffer without copying it. */
+  public static Message receivedMessage(ByteBuffer data)
+      throws IOException, ClassNotFoundException {
+    int offset = data.arrayOffset() + data.position();
+    InputStream is = new ByteArrayInputStream(data.array(), offset, data.remaining());
+    data.position(data.limit());
+    ObjectInputStream os = new ObjectInputStream(is);
+    return (Message) os.readObject();
+  }
+
   public static HashMap<Integer, String> listUser (byte[] data) throws IOException, ClassNotFoundException {
     InputStream is = new ByteArrayInputStream(data);
     ObjectInputStream os = new ObjectInputStream(is);
@@ -0,0 +1,535 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A client for the chat server that can be embedded in other programs, such as the console {@link
+ * Client}, load tests and bots. Nothing is polled. One thread blocks reading from the socket and
+ * hands every event to the {@link Listener}, whilst another blocks on a single outbound queue and
+ * writes whatever any thread sent in as few writes as possible, so sending never blocks on the
+ * socket. The queue is unbounded so nothing that was sent is ever dropped.
+ *
+ * <p>When the server restarts it tells the client how long to wait before reconnecting, spread out
+ * so not everyone comes back at once. The client then resumes its session with the token the server
+ * gave it, keeping its user list, rooms and passwords and receiving what it missed, and only joins
+ * from scratch if the session could not be resumed. Anything sent in the meantime is queued.
+ *
+ * <p>Encrypted messages are decrypted before they reach the listener if their password was added
+ * with {@link #addPassword}. They are sealed with a {@link MessageCipher}, or with the rot cipher
+ * that older clients understand when started with -Dchat.encryption=rot. The listener is called
+ * from the reader thread so should hand anything slow off to another thread.
+ */
+public class ChatClient implements Closeable {
+  private static final int MAX_BATCH_FRAMES = 64;
+  private static final long CONNECT_TIMEOUT_SECONDS = 10;
+  private static final long RECONNECT_SECONDS = 60;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+  private static final boolean SEAL = !System.getProperty("chat.encryption", "aes").equals("rot");
+
+  /** Everything that can happen to a client. Every method does nothing unless overridden. */
+  public interface Listener {
+    /**
+     * @param username The name of the sender, or null if they are no longer connected.
+     * @param room The room it was sent to, or null for everyone.
+     * @param text The text of the message. If it was sent with a password that has not been added
+     *     this is the text still encrypted with the rot cipher, or null if it was sealed.
+     * @param encrypted Whether it was encrypted with a password that has not been added.
+     */
+    default void onMessage(
+        int user, String username, String room, String text, boolean encrypted) {}
+
+    default void onUserJoined(int user, String username) {}
+
+    default void onUserLeft(int user, String username) {}
+
+    /** @param next The sequence number to ask for history from next time. */
+    default void onHistory(long next) {}
+
+    /**
+     * @param resumed Whether the session carried on where it left off, rather than joining again
+     *     and missing whatever was sent whilst the server was restarting.
+     */
+    default void onReconnected(boolean resumed) {}
+
+    /** @param cause Why the connection was lost, or null if it was closed. */
+    default void onDisconnected(IOException cause) {}
+  }
+
+  private final String host;
+  private final int port;
+  private final String username;
+  private final Listener listener;
+  // Replaced every time the client reconnects.
+  private volatile Socket socket;
+  private volatile OutputStream out;
+  private volatile String resumeToken;
+  // How long the server asked us to wait before reconnecting, or -1 if it is not restarting.
+  private volatile int restartDelayMillis = -1;
+  // Holds up the writer from when the server says it is restarting until we are back.
+  private boolean reconnecting = false;
+  private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+  private final Outbox outbound = new Outbox();
+  private final Map<Integer, String> users = new ConcurrentHashMap<>();
+  // Received messages carry the hash of their password so it can be looked up directly instead
+  // of running BCrypt against every password.
+  private final Map<String, String> passwords = new ConcurrentHashMap<>();
+  private final Map<String, String> hashes = new ConcurrentHashMap<>();
+  // The cipher of every password by its hash, so each key is only ever derived once.
+  private final Map<String, MessageCipher> ciphers = new ConcurrentHashMap<>();
+  private final CompletableFuture<String> salt = new CompletableFuture<>();
+  private final CompletableFuture<Void> joined = new CompletableFuture<>();
+  private volatile boolean closed = false;
+
+  private ChatClient(String host, int port, String username, Listener listener) {
+    this.host = host;
+    this.port = port;
+    this.username = username;
+    this.listener = listener;
+  }
+
+  /**
+   * Connects and joins as the user, returning once the server has sent the user list so that
+   * every message sent from then on is received.
+   */
+  public static ChatClient connect(String host, int port, String username, Listener listener)
+      throws IOException {
+    return connect(host, port, username, listener, ChatClient::daemon);
+  }
+
+  /** @param executor Runs the reader and writer, which each block for as long as the connection. */
+  public static ChatClient connect(
+      String host, int port, String username, Listener listener, Executor executor)
+      throws IOException {
+    ChatClient client = new ChatClient(host, port, username, listener);
+    client.open();
+    executor.execute(client::read);
+    executor.execute(client::write);
+    try {
+      client.joined.get(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+      client.close();
+      throw new IOException("Could not join the chat.", e);
+    }
+    return client;
+  }
+
+  /** @return A copy of everyone that is connected by their id. */
+  public Map<Integer, String> users() {
+    return new HashMap<>(users);
+  }
+
+  /** Sends a message to everyone. */
+  public void send(String text) throws IOException {
+    send(MessageToByte.message(text));
+  }
+
+  /** Sends a message to everyone in a room, which this client has to have joined. */
+  public void send(String room, String text) throws IOException {
+    Message message = new Message(0, text);
+    message.room = room;
+    send(BinaryCodec.message(MessageId.MESSAGE_RECEIVED, message));
+  }
+
+  /** Sends a message only the clients that added the same password can read. */
+  public void sendEncrypted(String password, String text) throws IOException {
+    String hash = hashes.get(password);
+    if (hash == null) {
+      throw new IllegalStateException("The password has to be added before it can be used.");
+    }
+    if (!SEAL) {
+      send(
+          BinaryCodec.message(
+              MessageId.MESSAGE_RECEIVED,
+              new Message(hash, Client.plainToEncrypted(password, text))));
+      return;
+    }
+    try {
+      send(ciphers.get(hash).seal(text));
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Could not encrypt the message.", e);
+    }
+  }
+
+  /**
+   * Hashes the password with the server's salt on the {@link BCryptService} and registers it, so
+   * messages encrypted with it are received and can be sent.
+   */
+  public CompletableFuture<Void> addPassword(String password) {
+    return BCryptService.shared()
+        .hash(password, salt.join())
+        .thenAccept(hash -> addPassword(password, hash));
+  }
+
+  /**
+   * Registers a password whose hash with the server's salt is already known, deriving its key
+   * which takes a while.
+   */
+  public void addPassword(String password, String hash) {
+    ciphers.computeIfAbsent(hash, key -> new MessageCipher(password, hash));
+    passwords.put(hash, password);
+    hashes.put(password, hash);
+    try {
+      send(MessageToByte.password(hash));
+    } catch (IOException e) {
+      // Only fails once the client is closed, which the listener is told about.
+    }
+  }
+
+  public void join(String room) throws IOException {
+    rooms.add(room);
+    send(MessageToByte.subscribe(room, true));
+  }
+
+  public void leave(String room) throws IOException {
+    rooms.remove(room);
+    send(MessageToByte.subscribe(room, false));
+  }
+
+  /** Asks for the last few messages sent before this client joined. */
+  public void history(long last) throws IOException {
+    send(MessageToByte.history(MessageToByte.HISTORY_LAST, last));
+  }
+
+  private void send(byte[] frame) throws IOException {
+    send(Frame.wrap(frame));
+  }
+
+  /** Queues a whole frame to be written by the writer thread, which releases it. */
+  private void send(Frame frame) throws IOException {
+    if (closed || !outbound.offer(frame)) {
+      throw new IOException("The client is closed.");
+    }
+  }
+
+  @Override
+  public void close() {
+    disconnect(null);
+  }
+
+  private void disconnect(IOException cause) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+    outbound.close();
+    try {
+      socket.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+    joined.completeExceptionally(cause == null ? new IOException("Closed.") : cause);
+    listener.onDisconnected(cause);
+  }
+
+  /**
+   * Connects and writes the handshake straight to the socket, ahead of anything queued. It resumes
+   * the session if the server gave us a token.
+   */
+  private void open() throws IOException {
+    Socket socket = new Socket(host, port);
+    socket.setTcpNoDelay(true);
+    OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+    byte features = Compression.FEATURE | Checkpoint.FEATURE | MessageCipher.FEATURE;
+    out.write(MessageToByte.codec(BinaryCodec.VERSION, features));
+    Socket old = this.socket;
+    this.socket = socket;
+    this.out = out;
+    if (old != null) {
+      old.close();
+    }
+    String token = resumeToken;
+    if (token != null) {
+      out.write(MessageToByte.resume(token));
+      out.flush();
+    } else {
+      register();
+    }
+  }
+
+  private void read() {
+    while (!closed) {
+      FrameDecoder decoder = new FrameDecoder(this::onFrame);
+      try {
+        InputStream is = socket.getInputStream();
+        while (true) {
+          decoder.readFrames(is);
+        }
+      } catch (IOException | ClassNotFoundException e) {
+        int delay = restartDelayMillis;
+        if (!closed && (delay < 0 || !reconnect(delay))) {
+          disconnect(new IOException(e.getMessage(), e));
+        }
+      } finally {
+        decoder.close();
+      }
+    }
+  }
+
+  /**
+   * Waits as long as the server asked and then keeps trying to connect, backing off with some
+   * jitter whilst the server is still down.
+   *
+   * @return Whether we connected before giving up.
+   */
+  private boolean reconnect(int delayMillis) {
+    restartDelayMillis = -1;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RECONNECT_SECONDS);
+    long wait = Math.max(delayMillis, 1);
+    while (!closed) {
+      try {
+        Thread.sleep(wait);
+        open();
+        return true;
+      } catch (IOException e) {
+        if (System.nanoTime() > deadline) {
+          return false;
+        }
+        wait = Math.min(wait * 2, MAX_BACKOFF_MILLIS);
+        wait = wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+      } catch (InterruptedException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  private synchronized boolean isReconnecting() {
+    return reconnecting;
+  }
+
+  /** Joins as a new session, with the rooms and passwords we had, ahead of anything queued. */
+  private void register() throws IOException {
+    OutputStream out = this.out;
+    out.write(MessageToByte.init(username));
+    for (String hash : passwords.keySet()) {
+      out.write(MessageToByte.password(hash));
+    }
+    for (String room : rooms) {
+      out.write(MessageToByte.subscribe(room, true));
+    }
+    out.flush();
+  }
+
+  /** Lets the writer carry on with whatever was sent whilst we were reconnecting. */
+  private void reconnected(boolean resumed) {
+    synchronized (this) {
+      reconnecting = false;
+      notifyAll();
+    }
+    outbound.wake();
+    listener.onReconnected(resumed);
+  }
+
+  private void onFrame(MessageId id, ByteBuffer data) throws IOException {
+    switch (id) {
+      case COMPRESSED:
+        ByteBuffer inflated = Compression.inflate(data, FrameDecoder.MAX_FRAME_BYTES);
+        try {
+          onFrame(Compression.id(data), inflated);
+        } finally {
+          BufferPool.release(inflated);
+        }
+        break;
+      case SALT:
+        salt.complete(ByteToMessage.string(data));
+        break;
+      case RESTART:
+        synchronized (this) {
+          reconnecting = true;
+        }
+        restartDelayMillis = data.getInt();
+        break;
+      case RESUME:
+        String token = ByteToMessage.string(data);
+        if (!token.isEmpty()) {
+          resumeToken = token;
+          if (isReconnecting()) {
+            reconnected(true);
+          }
+          break;
+        }
+        // The server could not resume the session so join again from scratch.
+        resumeToken = null;
+        register();
+        reconnected(false);
+        break;
+      case LIST_USER:
+        // The whole list is sent again when we fall too far behind on who joined and left.
+        Map<Integer, String> list = BinaryCodec.getUserList(data);
+        users.keySet().retainAll(list.keySet());
+        users.putAll(list);
+        joined.complete(null);
+        if (isReconnecting()) {
+          // Only servers that can't resume sessions send the list straight after reconnecting.
+          reconnected(false);
+        }
+        break;
+      case ADD_USER:
+        int user = data.getInt();
+        String username = ByteToMessage.string(data);
+        users.put(user, username);
+        listener.onUserJoined(user, username);
+        break;
+      case REMOVE_USER:
+        user = data.getInt();
+        listener.onUserLeft(user, users.remove(user));
+        break;
+      case MESSAGE_RECEIVED:
+        Message message = BinaryCodec.getMessage(data);
+        String text = message.message;
+        String password = message.passwordHash == null ? null : passwords.get(message.passwordHash);
+        if (message.sealed != null) {
+          MessageCipher cipher = ciphers.get(message.passwordHash);
+          try {
+            text = cipher != null ? cipher.open(message.sealed) : null;
+          } catch (GeneralSecurityException e) {
+            System.err.println("Dropped a message that could not be decrypted.");
+            break;
+          }
+        } else if (password != null) {
+          text = Client.encryptedToPlain(password, text);
+        }
+        listener.onMessage(
+            message.user,
+            users.get(message.user),
+            message.room,
+            text,
+            message.passwordHash != null && password == null);
+        break;
+      case HISTORY:
+        data.get();
+        listener.onHistory(data.getLong());
+        break;
+    }
+  }
+
+  private void write() {
+    Frame[] batch = new Frame[MAX_BATCH_FRAMES];
+    try {
+      while (outbound.await()) {
+        synchronized (this) {
+          while (reconnecting && !closed) {
+            wait();
+          }
+        }
+        try {
+          writeQueued(batch);
+        } catch (IOException e) {
+          // The reader finds out too and reconnects if the server is restarting, in which case
+          // only what was being written is lost.
+          if (restartDelayMillis < 0) {
+            disconnect(e);
+            return;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      disconnect(null);
+    }
+  }
+
+  private void writeQueued(Frame[] batch) throws IOException {
+    OutputStream os = out;
+    int count;
+    while ((count = outbound.poll(batch)) > 0) {
+      try {
+        for (int i = 0; i < count; i++) {
+          ByteBuffer bytes = batch[i].bytes();
+          os.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+        }
+      } finally {
+        for (int i = 0; i < count; i++) {
+          batch[i].release();
+          batch[i] = null;
+        }
+      }
+    }
+    os.flush();
+  }
+
+  /**
+   * The frames waiting to be written. Unlike the server's {@link OutboundQueue} it never drops a
+   * frame, such as whilst reconnecting, and doesn't count towards the server's limit on every
+   * queue together.
+   */
+  private static final class Outbox {
+    private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+    private boolean woken = false;
+    private boolean closed = false;
+
+    /**
+     * Queues a frame, taking over the caller's reference to it.
+     *
+     * @return false if the client has been closed.
+     */
+    synchronized boolean offer(Frame frame) {
+      if (closed) {
+        frame.release();
+        return false;
+      }
+      frames.add(frame);
+      notifyAll();
+      return true;
+    }
+
+    /** @return How many frames were put into the batch, which the caller has to release. */
+    synchronized int poll(Frame[] batch) {
+      int count = 0;
+      while (count < batch.length && !frames.isEmpty()) {
+        batch[count++] = frames.poll();
+      }
+      return count;
+    }
+
+    /**
+     * Blocks until there is something to write or someone called {@link #wake()}.
+     *
+     * @return false once the client has been closed.
+     */
+    synchronized boolean await() throws InterruptedException {
+      while (!closed && !woken && frames.isEmpty()) {
+        wait();
+      }
+      woken = false;
+      return !closed;
+    }
+
+    synchronized void wake() {
+      woken = true;
+      notifyAll();
+    }
+
+    synchronized void close() {
+      closed = true;
+      while (!frames.isEmpty()) {
+        frames.poll().release();
+      }
+      notifyAll();
+    }
+  }
+
+  private static void daemon(Runnable runnable) {
+    Thread thread = new Thread(runnable, "chat-client");
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
@@ -0,0 +1,178 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything a restarted server needs for its clients to carry on where they left off: the salt,
+ * and for every connected client the resume token it was given, its user id and name, the rooms it
+ * was in and the sequence number of the first message it has not been sent yet. It is written to
+ * chat.checkpoint (a file in the log directory) when the server is stopped and read back, and
+ * removed, when it starts again.
+ *
+ * <p>Clients that send their token in a {@link MessageId#RESUME} frame instead of INIT get their
+ * old id, rooms and user list back and are replayed whatever they missed from the {@link
+ * MessageStore}, so there is no user list to send and no password to hash again. Everyone in the
+ * checkpoint counts as connected until chat.resume.seconds after the restart, so clients that come
+ * back don't see everyone leave and join again.
+ */
+public class Checkpoint {
+  /** The bit of the CODEC frame's features that asks for resume tokens and RESTART frames. */
+  public static final byte FEATURE = 2;
+
+  static final Path FILE =
+      Path.of(
+          System.getProperty(
+              "chat.checkpoint", MessageStore.DIRECTORY.resolve("checkpoint").toString()));
+  static final long RESUME_SECONDS = Long.getLong("chat.resume.seconds", 30);
+  static final int RESTART_DELAY_MILLIS = Integer.getInteger("chat.restart.delayMillis", 500);
+  static final int RESTART_JITTER_MILLIS = Integer.getInteger("chat.restart.jitterMillis", 5000);
+  static final long DRAIN_MILLIS = Long.getLong("chat.restart.drainMillis", 2000);
+  private static final int MAGIC = 0x43484b31;
+  private static final SecureRandom random = new SecureRandom();
+
+  final String salt;
+  final int connectionCount;
+  final List<Entry> entries;
+
+  Checkpoint(String salt, int connectionCount, List<Entry> entries) {
+    this.salt = salt;
+    this.connectionCount = connectionCount;
+    this.entries = entries;
+  }
+
+  /** A single client that can resume. */
+  static final class Entry {
+    final String token;
+    final int id;
+    final String username;
+    final long cursor;
+    final List<String> rooms;
+
+    Entry(String token, int id, String username, long cursor, List<String> rooms) {
+      this.token = token;
+      this.id = id;
+      this.username = username;
+      this.cursor = cursor;
+      this.rooms = rooms;
+    }
+  }
+
+  /**
+   * Tells every client that can resume when to reconnect, spreading them out over
+   * chat.restart.jitterMillis so they don't all come back at once, waits up to
+   * chat.restart.drainMillis for them to be sent everything queued and then saves the checkpoint.
+   * Messages that are still queued after that are lost.
+   */
+  static void drain(State state, String salt) {
+    List<Session> sessions = state.sessions();
+    List<Session> restarted = new ArrayList<>();
+    for (Session session : sessions) {
+      if (session.restart(RESTART_DELAY_MILLIS + random.nextInt(RESTART_JITTER_MILLIS + 1))) {
+        restarted.add(session);
+      }
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_MILLIS);
+    while (System.nanoTime() < deadline && sessions.stream().anyMatch(Session::isSending)) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        break;
+      }
+    }
+    List<Entry> entries = new ArrayList<>();
+    for (Session session : restarted) {
+      entries.add(session.checkpoint());
+    }
+    try {
+      new Checkpoint(salt, state.connectionCount(), entries).save();
+      System.out.println("Saved checkpoint of " + entries.size() + " clients.");
+    } catch (IOException e) {
+      System.err.println("Could not save checkpoint: " + e.getMessage());
+    }
+  }
+
+  /** Drains into a checkpoint when the server is stopped, such as with Ctrl+C or SIGTERM. */
+  static void drainOnExit(State state, String salt) {
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> drain(state, salt), "drain"));
+  }
+
+  /** @return A token that can't be guessed for a client to resume its session with. */
+  static String newToken() {
+    byte[] token = new byte[16];
+    random.nextBytes(token);
+    return HexFormat.of().formatHex(token);
+  }
+
+  /** Writes the checkpoint to a temporary file first so a crash never leaves half of one. */
+  void save() throws IOException {
+    Path temporary = FILE.resolveSibling(FILE.getFileName() + ".tmp");
+    try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+      out.writeInt(MAGIC);
+      out.writeUTF(salt);
+      out.writeInt(connectionCount);
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeUTF(entry.token);
+        out.writeInt(entry.id);
+        out.writeUTF(entry.username);
+        out.writeLong(entry.cursor);
+        out.writeInt(entry.rooms.size());
+        for (String room : entry.rooms) {
+          out.writeUTF(room);
+        }
+      }
+    }
+    Files.move(
+        temporary, FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Reads and removes the checkpoint, so it is only ever resumed from once.
+   *
+   * @return The checkpoint, or null if there is none or it could not be read.
+   */
+  static Checkpoint take() {
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(FILE))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a checkpoint.");
+      }
+      String salt = in.readUTF();
+      int connectionCount = in.readInt();
+      int count = in.readInt();
+      List<Entry> entries = new ArrayList<>();
+      for (int i = 0; i < count; i++) {
+        String token = in.readUTF();
+        int id = in.readInt();
+        String username = in.readUTF();
+        long cursor = in.readLong();
+        int roomCount = in.readInt();
+        List<String> rooms = new ArrayList<>();
+        for (int j = 0; j < roomCount; j++) {
+          rooms.add(in.readUTF());
+        }
+        entries.add(new Entry(token, id, username, cursor, rooms));
+      }
+      return new Checkpoint(salt, connectionCount, entries);
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (IOException e) {
+      System.err.println("Could not read checkpoint: " + e.getMessage());
+      return null;
+    } finally {
+      try {
+        Files.deleteIfExists(FILE);
+      } catch (IOException e) {
+        System.err.println(e.getMessage());
+      }
+    }
+  }
+}
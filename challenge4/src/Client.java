@@ -1,106 +1,116 @@
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.util.concurrent.CompletionException;
 
+/**
+ * The console client, which reads lines from stdin on the main thread whilst {@link ChatClient}
+ * prints whatever arrives as soon as it does.
+ */
 public class Client {
 
   public static void main(String[] args) throws IOException {
     BufferedReader obj = new BufferedReader(new InputStreamReader(System.in));
-    HashMap<Integer, String> users = new HashMap<>();
-    List<String> passwords = new ArrayList<>();
-    List<String> hashedPasswords = new ArrayList<>();
-    byte[] input = new byte[5];
+    // Messages go to whichever of the password and the room was chosen last, or the lobby if
+    // neither is set. Only changed by the main thread once it is connected.
+    String password = null;
+    String room = null;
 
     System.out.print("Please input a username: ");
     String username = obj.readLine();
-    try (Socket socket = new Socket("localhost", 3001)) {
-      OutputStream os = socket.getOutputStream();
-      DataInputStream is = new DataInputStream(socket.getInputStream());
-      os.write(MessageToByte.init(username));
-      is.readFully(input);
-      byte[] data = new byte[ByteToMessage.integer(input)];
-      is.readFully(data);
-      MessageId id = MessageId.values[input[4]];
-      if (id != MessageId.SALT) {
-        System.err.println("Received incorrect initial packet.");
-      }
-      final String salt = ByteToMessage.string(data);
-      while (true) {
-        if (obj.ready()) {
-          String userInput = obj.readLine();
-          if (userInput.startsWith("/password ")) {
-            String password = userInput.substring(10);
-            String hashedPassword = BCrypt.hashpw(password, salt);
-            System.out.println("Set new password!");
-            passwords.add(password);
-            hashedPasswords.add(hashedPassword);
-            os.write(MessageToByte.password(hashedPassword));
-          } else {
-            if (passwords.isEmpty()) {
-              os.write(MessageToByte.message(userInput));
-            } else {
-              os.write(
-                  MessageToByte.encrypted(
-                      new Message(
-                          hashedPasswords.get(hashedPasswords.size() - 1),
-                          plainToEncrypted(passwords.get(passwords.size() - 1), userInput))));
+    ChatClient.Listener listener =
+        new ChatClient.Listener() {
+          @Override
+          public void onMessage(
+              int user, String username, String room, String text, boolean encrypted) {
+            String from = username == null ? "Unknown" : username;
+            if (room != null) {
+              from = from + "] in [" + room;
             }
+            // Sealed messages can't be read at all without their password.
+            System.out.println("[" + from + "]: " + (text == null ? "<sealed message>" : text));
           }
-        }
-        while (is.available() > 1) {
-          is.readFully(input);
-          data = new byte[ByteToMessage.integer(input)];
-          is.readFully(data);
-          switch (MessageId.values[input[4]]) {
-            case ADD_USER:
-              int newId = ByteToMessage.integer(data);
-              String newUsername = ByteToMessage.string(Arrays.copyOfRange(data, 4, data.length));
-              users.put(newId, newUsername);
-              System.out.println(newUsername + " has connected!");
-              break;
-            case REMOVE_USER:
-              newId = ByteToMessage.integer(data);
-              System.out.println(users.get(newId) + " has disconnected!");
-              users.remove(newId);
-              break;
-            case LIST_USER:
-              users.putAll(ByteToMessage.listUser(data));
-              break;
-            case MESSAGE_RECEIVED:
-              Message message = ByteToMessage.receivedMessage(data);
-              String text = message.message;
-              if (message.passwordHash != null) {
-                for (String password : passwords) {
-                  if (BCrypt.checkpw(password, message.passwordHash)) {
-                    text = encryptedToPlain(password, message.message);
-                    break;
-                  }
-                }
-              }
-              System.out.println("[" + users.getOrDefault(message.user, "Unknown") + "]: " + text);
-              break;
+
+          @Override
+          public void onUserJoined(int user, String username) {
+            System.out.println(username + " has connected!");
+          }
+
+          @Override
+          public void onUserLeft(int user, String username) {
+            System.out.println(username + " has disconnected!");
+          }
+
+          @Override
+          public void onReconnected(boolean resumed) {
+            System.out.println(
+                resumed ? "Reconnected!" : "Reconnected, but some messages may have been missed.");
+          }
+
+          @Override
+          public void onDisconnected(IOException cause) {
+            if (cause != null) {
+              System.err.println("Disconnected: " + cause.getMessage());
+              System.exit(1);
+            }
+          }
+        };
+    try (ChatClient client = ChatClient.connect("localhost", 3001, username, listener)) {
+      client.history(20);
+      String userInput;
+      while ((userInput = obj.readLine()) != null) {
+        if (userInput.startsWith("/password ")) {
+          String pendingPassword = userInput.substring(10);
+          try {
+            client.addPassword(pendingPassword).join();
+            password = pendingPassword;
+            if (room != null) {
+              client.leave(room);
+              room = null;
+            }
+            System.out.println("Set new password! Messages are encrypted until you /leave.");
+          } catch (CompletionException e) {
+            System.err.println("Could not set password, please try again.");
+          }
+        } else if (userInput.startsWith("/join ")) {
+          if (room != null) {
+            client.leave(room);
+          }
+          // The password stays added so its messages are still received.
+          password = null;
+          room = userInput.substring(6);
+          client.join(room);
+          System.out.println("Joined " + room + ", /leave to go back to everyone.");
+        } else if (userInput.equals("/leave")) {
+          if (room != null) {
+            client.leave(room);
+            System.out.println("Left " + room + ".");
+          } else if (password != null) {
+            System.out.println("Stopped encrypting messages.");
+          } else {
+            System.out.println("You are already talking to everyone.");
           }
+          room = null;
+          password = null;
+        } else if (password != null) {
+          client.sendEncrypted(password, userInput);
+        } else if (room != null) {
+          client.send(room, userInput);
+        } else {
+          client.send(userInput);
         }
-        Thread.sleep(50);
       }
-    } catch (IOException | ClassNotFoundException | InterruptedException e) {
+    } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
   public static String rot(int times, String message) {
-    StringBuilder newMessage = new StringBuilder();
-    for (char c : message.toCharArray()) {
-      newMessage.append((char) ((int) c + times));
+    char[] chars = message.toCharArray();
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) (chars[i] + times);
     }
-    return newMessage.toString();
+    return new String(chars);
   }
 
   public static String encryptedToPlain(String password, String encryptedMessage) {
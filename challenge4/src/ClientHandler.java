@@ -1,112 +1,190 @@
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ClientHandler implements Runnable, UserListener {
+/**
+ * Serves a single client from its own thread. By default it polls the socket and the state every
+ * 50 ms. In blocking mode the thread instead blocks reading from the socket while a second thread
+ * blocks on the session's outbound queue, which the state wakes up as soon as a message is added.
+ * Either way everything queued up for the client is coalesced into as few writes as possible.
+ */
+public class ClientHandler implements Runnable, MessageListener, Transport {
+  private static final int MAX_BATCH_FRAMES = 256;
 
   final Socket socket;
-  final int connectionId;
+  final Session session;
   final State state;
-  final String salt;
-  String username;
-  DataInputStream is;
+  final ExecutorService executor;
+  final AtomicBoolean drainQueued = new AtomicBoolean(false);
+  private final Frame[] batch = new Frame[MAX_BATCH_FRAMES];
+  final FrameDecoder decoder;
+  InputStream is;
   OutputStream os;
-  List<String> hashedPasswords = new ArrayList<>();
+  // Used for frames that are not on the heap, such as history replayed from the message store.
+  WritableByteChannel channel;
 
   public ClientHandler(Socket socket, int connectionId, State state, String salt) {
+    this(socket, connectionId, state, salt, null);
+  }
+
+  /** Creates a handler in blocking mode that starts its writer on the given executor. */
+  public ClientHandler(
+      Socket socket, int connectionId, State state, String salt, ExecutorService executor) {
     this.socket = socket;
-    this.connectionId = connectionId;
     this.state = state;
-    this.salt = salt;
+    this.executor = executor;
+    this.session = new Session(connectionId, state, salt, this);
+    this.decoder = new FrameDecoder(session::onFrame);
   }
 
   @Override
   public void run() {
+    if (executor != null) {
+      runBlocking();
+      return;
+    }
     try {
-      is = new DataInputStream(socket.getInputStream());
+      is = socket.getInputStream();
       os = socket.getOutputStream();
-      Optional<Message> stateMessage;
 
-      os.write(MessageToByte.salt(salt));
+      session.start();
+      writeQueued();
 
-      byte[] input = new byte[5];
-      is.readFully(input);
-      byte[] data = new byte[ByteToMessage.integer(input)];
-      is.readFully(data);
-      MessageId id = MessageId.values[input[4]];
-
-      if (id != MessageId.INIT) {
-        System.err.println("Received incorrect initial packet.");
+      while (!session.isRegistered()) {
+        decoder.readFrames(is);
       }
-      username = ByteToMessage.string(data);
-      state.registerNewUser(connectionId, username, this);
-      System.out.println(username + " has connected!");
-      os.write(MessageToByte.listUser(state.getUserList()));
       while (!socket.isClosed()) {
-        while (is.available() > 1) {
-          is.readFully(input);
-          data = new byte[ByteToMessage.integer(input)];
-          is.readFully(data);
-          switch (MessageId.values[input[4]]) {
-            case MESSAGE:
-              Message message = new Message(connectionId, ByteToMessage.string(data));
-              System.out.println("[" + username + "]: " + message.message);
-              state.addMessage(message);
-              break;
-            case MESSAGE_RECEIVED:
-              Message received = ByteToMessage.receivedMessage(data);
-              received.user = connectionId;
-              System.out.println("[" + username + "] sent encrypted message: " + received.message);
-              state.addMessage(received);
-            case ADD_PASSWORD:
-              hashedPasswords.add(ByteToMessage.string(data));
-              break;
-          }
-        }
-        while ((stateMessage = state.getMessage(connectionId)).isPresent()) {
-          // Only send the message if the client has the potential of sending being able to decrypt
-          // it.
-          if (stateMessage.get().user != connectionId
-              && (stateMessage.get().passwordHash == null
-                  || hashedPasswords.contains(stateMessage.get().passwordHash))) {
-            os.write(MessageToByte.receivedMessage(stateMessage.get()));
-          }
+        while (is.available() > 0) {
+          decoder.readFrames(is);
         }
+        session.deliver();
+        writeQueued();
         Thread.sleep(50);
       }
-      System.out.println(username + " has disconnected!");
-      state.deRegister(connectionId, this);
+      session.close();
     } catch (IOException | InterruptedException | ClassNotFoundException e) {
       System.err.println("Got error: " + e.getMessage());
       try {
         socket.close();
-        System.out.println(username + " has disconnected!");
-        state.deRegister(connectionId, this);
+        session.close();
       } catch (IOException ex) {
         System.err.println(ex.getMessage());
       }
+    } finally {
+      decoder.close();
     }
   }
 
-  @Override
-  public void onNewUser(int id, String username) {
+  private void runBlocking() {
     try {
-      os.write(MessageToByte.addUser(id, username));
-    } catch (IOException e) {
-      e.printStackTrace();
+      is = socket.getInputStream();
+      os = socket.getOutputStream();
+      executor.execute(this::write);
+
+      session.start();
+      while (true) {
+        boolean registered = session.isRegistered();
+        decoder.readFrames(is);
+        if (!registered && session.isRegistered()) {
+          state.addMessageListener(this);
+          onMessagesAvailable();
+        }
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      System.err.println("Got error: " + e.getMessage());
+    } finally {
+      state.removeMessageListener(this);
+      session.close();
+      decoder.close();
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        System.err.println(ex.getMessage());
+      }
     }
   }
 
+  /** Writes everything queued for the client, only waking up when there is something to send. */
+  private void write() {
+    try {
+      while (session.outbound.await()) {
+        if (drainQueued.getAndSet(false)) {
+          session.deliver();
+        }
+        writeQueued();
+      }
+    } catch (IOException | InterruptedException e) {
+      System.err.println("Got error: " + e.getMessage());
+      disconnect();
+    }
+  }
+
+  /** Writes the queued frames in batches, copying each batch into a single write. */
+  private void writeQueued() throws IOException {
+    int count;
+    while ((count = session.outbound.poll(batch)) > 0) {
+      try {
+        if (count == 1) {
+          write(batch[0].bytes());
+          continue;
+        }
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+          size += batch[i].size();
+        }
+        ByteBuffer coalesced = BufferPool.acquire(size);
+        for (int i = 0; i < count; i++) {
+          coalesced.put(batch[i].bytes());
+        }
+        coalesced.flip();
+        write(coalesced);
+        BufferPool.release(coalesced);
+      } finally {
+        for (int i = 0; i < count; i++) {
+          batch[i].release();
+          batch[i] = null;
+        }
+      }
+    }
+  }
+
+  private void write(ByteBuffer bytes) throws IOException {
+    if (bytes.hasArray()) {
+      os.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      return;
+    }
+    if (channel == null) {
+      channel = Channels.newChannel(os);
+    }
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
+  @Override
+  public void onMessagesAvailable() {
+    if (drainQueued.compareAndSet(false, true)) {
+      session.outbound.wake();
+    }
+  }
+
+  @Override
+  public void onQueued() {
+    // Both modes already pick up queued frames, either on the next poll or from the queue.
+  }
+
   @Override
-  public void onLostUser(int id) {
+  public void disconnect() {
     try {
-      os.write(MessageToByte.removeUser(id));
+      socket.close();
     } catch (IOException e) {
-      e.printStackTrace();
+      System.err.println(e.getMessage());
     }
   }
 }
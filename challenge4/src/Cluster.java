@@ -0,0 +1,305 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Links several servers together so that clients connected to any of them can talk to each other.
+ * Every node relays the messages its own clients send and its own clients joining and leaving to
+ * every peer, using the normal frames wrapped in a RELAY frame that says which node they came from
+ * and their sequence number on that node. Nodes only relay their own events so the peers have to
+ * be a full mesh.
+ *
+ * <p>A node dials every peer and only ever sends on that connection, the peer only ever receives.
+ * When a link drops the sender reconnects and resends the events the receiver missed from its
+ * recent events, and the receiver ignores any events it has already seen. The node is set with
+ * chat.node, the port peers connect to with chat.cluster.port and the peers with chat.cluster.peers
+ * as a comma separated list of host:port. Each node must have a different chat.node and they
+ * must all share the same chat.salt.
+ */
+public class Cluster {
+  static final int NODE_ID = Integer.getInteger("chat.node", 0);
+  static final int RESEND = Integer.getInteger("chat.cluster.resend", 4096);
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+
+  final int nodeId;
+  private final State state;
+  private final ServerSocket server;
+  private final List<Link> links = new ArrayList<>();
+  // The last event applied from each node.
+  private final Map<Integer, Long> lastSeen = new HashMap<>();
+  // The most recent events this node relayed so they can be resent after a link drops.
+  private final ArrayDeque<byte[]> recent = new ArrayDeque<>();
+  private final ArrayDeque<Long> recentSequences = new ArrayDeque<>();
+  // Starts from the clock so that a restarted node carries on after the events peers saw from it.
+  private long sequence = System.currentTimeMillis() << 20;
+
+  public Cluster(int nodeId, State state, int port, List<InetSocketAddress> peers)
+      throws IOException {
+    this.nodeId = nodeId;
+    this.state = state;
+    server = new ServerSocket(port);
+    server.setReuseAddress(true);
+    for (InetSocketAddress peer : peers) {
+      links.add(new Link(peer));
+    }
+  }
+
+  /** @return The cluster configured by the system properties, or null if there isn't one. */
+  public static Cluster fromProperties(State state) throws IOException {
+    String port = System.getProperty("chat.cluster.port");
+    if (port == null) {
+      return null;
+    }
+    List<InetSocketAddress> peers = new ArrayList<>();
+    for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+      if (!peer.isBlank()) {
+        String[] parts = peer.trim().split(":");
+        peers.add(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])));
+      }
+    }
+    return new Cluster(state.nodeId, state, Integer.parseInt(port), peers);
+  }
+
+  /** Starts accepting peers and dialling them, relaying every event of the state from now on. */
+  public void start() {
+    state.setCluster(this);
+    daemon(this::accept, "cluster-accept");
+    for (Link link : links) {
+      daemon(link, "cluster-link");
+    }
+  }
+
+  /** @return How many peers this node is currently sending to. */
+  public int connectedPeers() {
+    int connected = 0;
+    for (Link link : links) {
+      if (link.connected) {
+        connected += 1;
+      }
+    }
+    return connected;
+  }
+
+  /** Sends a copy of one of this node's own events to every peer. */
+  void relay(ByteBuffer frame) {
+    // Queued whilst holding the lock so that every peer receives the events in sequence order.
+    synchronized (recent) {
+      sequence += 1;
+      byte[] relayed = MessageToByte.relay(nodeId, sequence, frame);
+      recent.add(relayed);
+      recentSequences.add(sequence);
+      if (recent.size() > RESEND) {
+        recent.poll();
+        recentSequences.poll();
+      }
+      for (Link link : links) {
+        link.send(relayed);
+      }
+    }
+  }
+
+  /** @return The recent events after the sequence number. */
+  private List<byte[]> recentSince(long since) {
+    List<byte[]> missed = new ArrayList<>();
+    synchronized (recent) {
+      Iterator<Long> sequences = recentSequences.iterator();
+      for (byte[] frame : recent) {
+        if (sequences.next() > since) {
+          missed.add(frame);
+        }
+      }
+    }
+    return missed;
+  }
+
+  private void accept() {
+    while (true) {
+      try {
+        Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        daemon(() -> receive(socket), "cluster-peer");
+      } catch (IOException e) {
+        System.err.println("Cluster stopped accepting peers: " + e.getMessage());
+        return;
+      }
+    }
+  }
+
+  /** Applies the events sent by a single peer until it disconnects. */
+  private void receive(Socket socket) {
+    int peer = -1;
+    try (socket) {
+      DataInputStream is = new DataInputStream(socket.getInputStream());
+      ByteBuffer hello = ByteBuffer.wrap(readFrame(is, MessageId.PEER));
+      peer = hello.getInt();
+      long since;
+      synchronized (lastSeen) {
+        since = lastSeen.getOrDefault(peer, -1L);
+      }
+      socket.getOutputStream().write(MessageToByte.peer(nodeId, since));
+      System.out.println("Node " + peer + " joined the cluster.");
+      while (true) {
+        ByteBuffer relay = ByteBuffer.wrap(readFrame(is, MessageId.RELAY));
+        int origin = relay.getInt();
+        long eventSequence = relay.getLong();
+        if (isNew(origin, eventSequence)) {
+          apply(relay);
+        }
+      }
+    } catch (IOException e) {
+      // The peer disconnected or stopped.
+    } catch (RuntimeException e) {
+      // Such as reading past the end of a truncated event, which would otherwise leave the peer's
+      // users listed here for good.
+      System.err.println("Dropped node " + peer + " after a malformed event: " + e);
+    } finally {
+      if (peer != -1) {
+        System.out.println("Node " + peer + " left the cluster.");
+        state.removeNode(peer);
+      }
+    }
+  }
+
+  /** @return Whether the event has not been applied yet, remembering that it now has been. */
+  private boolean isNew(int origin, long eventSequence) {
+    // Events without a sequence number can safely be applied any number of times.
+    if (eventSequence < 0) {
+      return true;
+    }
+    synchronized (lastSeen) {
+      if (eventSequence <= lastSeen.getOrDefault(origin, -1L)) {
+        return false;
+      }
+      lastSeen.put(origin, eventSequence);
+      return true;
+    }
+  }
+
+  private void apply(ByteBuffer frame) {
+    int length = frame.getInt();
+    MessageId id = MessageId.values[frame.get()];
+    ByteBuffer data = frame.slice(frame.position(), length);
+    switch (id) {
+      case MESSAGE_RECEIVED:
+        state.addRelayedMessage(BinaryCodec.getMessage(data));
+        break;
+      case ADD_USER:
+        int user = data.getInt();
+        state.addRemoteUser(user, BinaryCodec.getUtf8(data, data.remaining()));
+        break;
+      case REMOVE_USER:
+        state.removeRemoteUser(data.getInt());
+        break;
+    }
+  }
+
+  private static byte[] readFrame(DataInputStream is, MessageId expected) throws IOException {
+    byte[] input = new byte[5];
+    is.readFully(input);
+    if (input[4] != expected.ordinal()) {
+      throw new IOException("Expected " + expected + " but got frame id " + input[4]);
+    }
+    // A relayed frame is a whole client frame with the origin and sequence number in front.
+    int length = ByteToMessage.integer(input);
+    if (length < 0 || length > FrameDecoder.MAX_FRAME_BYTES + 17) {
+      throw new IOException("Frame of " + length + " bytes is too big.");
+    }
+    byte[] data = new byte[length];
+    is.readFully(data);
+    return data;
+  }
+
+  private static void daemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** The connection this node sends its events to a single peer over. */
+  private final class Link implements Runnable {
+    final InetSocketAddress address;
+    final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(RESEND);
+    volatile boolean connected = false;
+    // Set when the peer could not keep up, the link is then rebuilt from the recent events.
+    volatile boolean overflowed = false;
+
+    Link(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    void send(byte[] frame) {
+      if (connected && !queue.offer(frame)) {
+        overflowed = true;
+      }
+    }
+
+    @Override
+    public void run() {
+      long backoff = 100;
+      while (true) {
+        try (Socket socket = new Socket()) {
+          socket.connect(address, 1000);
+          socket.setTcpNoDelay(true);
+          DataInputStream is = new DataInputStream(socket.getInputStream());
+          OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+          os.write(MessageToByte.peer(nodeId, -1));
+          os.flush();
+          ByteBuffer reply = ByteBuffer.wrap(readFrame(is, MessageId.PEER));
+          reply.getInt();
+          long since = reply.getLong();
+          // Anything relayed from here on is queued so nothing falls between the resent events
+          // and the queue, whatever is sent twice is ignored by the peer.
+          queue.clear();
+          overflowed = false;
+          connected = true;
+          // A peer that has never seen this node before has nothing to catch up on.
+          if (since >= 0) {
+            for (byte[] frame : recentSince(since)) {
+              os.write(frame);
+            }
+          }
+          for (Map.Entry<Integer, String> user : state.localUsers().entrySet()) {
+            os.write(
+                MessageToByte.relay(
+                    nodeId,
+                    -1,
+                    ByteBuffer.wrap(MessageToByte.addUser(user.getKey(), user.getValue()))));
+          }
+          os.flush();
+          backoff = 100;
+          while (!overflowed) {
+            byte[] frame = queue.take();
+            do {
+              os.write(frame);
+            } while ((frame = queue.poll()) != null);
+            os.flush();
+          }
+          System.err.println("Peer " + address + " could not keep up, reconnecting.");
+        } catch (IOException e) {
+          connected = false;
+          try {
+            Thread.sleep(backoff);
+          } catch (InterruptedException ex) {
+            return;
+          }
+          backoff = Math.min(MAX_BACKOFF_MILLIS, backoff * 2);
+        } catch (InterruptedException e) {
+          return;
+        }
+        connected = false;
+      }
+    }
+  }
+}
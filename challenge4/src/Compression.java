@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates big frames for the clients that asked for it in their {@link MessageId#CODEC} frame.
+ * A compressed frame is a {@link MessageId#COMPRESSED} frame holding the id of the original frame,
+ * the length of its payload and then the deflated payload, which the client inflates and handles
+ * like the original frame.
+ *
+ * <p>Frames smaller than chat.compress.minBytes (512) are never compressed as it would barely save
+ * anything, and frames that don't get smaller are sent as they are. Deflaters and inflaters are
+ * pooled rather than created for each frame as they hold native memory.
+ */
+public class Compression {
+  /** The bit of the CODEC frame's features that asks for compressed frames. */
+  public static final byte FEATURE = 1;
+
+  static final int MIN_BYTES = Integer.getInteger("chat.compress.minBytes", 512);
+  private static final int LEVEL = Integer.getInteger("chat.compress.level", Deflater.BEST_SPEED);
+  private static final int HEADER = 5;
+  // The original id and payload length at the start of a compressed frame's payload.
+  private static final int INNER_HEADER = 5;
+  private static final int MAX_POOLED = 16;
+
+  private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+  private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+  /**
+   * @param frame A whole frame, header included, that is left unchanged.
+   * @return A COMPRESSED frame in a pooled buffer, or null if the frame is too small or would not
+   *     get any smaller.
+   */
+  public static Frame compress(ByteBuffer frame) {
+    int size = frame.remaining();
+    if (size < MIN_BYTES) {
+      return null;
+    }
+    long start = System.nanoTime();
+    ByteBuffer payload = frame.duplicate();
+    byte id = payload.get(payload.position() + 4);
+    payload.position(payload.position() + HEADER);
+    // Only worth sending if it is smaller than the original, so there is no need for more room.
+    ByteBuffer out = BufferPool.acquire(size);
+    out.limit(size);
+    out.putInt(0).put((byte) MessageId.COMPRESSED.ordinal()).put(id).putInt(payload.remaining());
+    Deflater deflater = deflater();
+    try {
+      deflater.setInput(payload);
+      deflater.finish();
+      while (!deflater.finished() && out.hasRemaining()) {
+        deflater.deflate(out);
+      }
+      if (!deflater.finished()) {
+        BufferPool.release(out);
+        Metrics.shared().compressed(size, size, System.nanoTime() - start);
+        return null;
+      }
+    } finally {
+      release(deflater);
+    }
+    out.putInt(0, out.position() - HEADER);
+    out.flip();
+    Metrics.shared().compressed(size, out.remaining(), System.nanoTime() - start);
+    return Frame.pooled(out);
+  }
+
+  /** @return The id of the frame that was compressed into the payload of a COMPRESSED frame. */
+  public static MessageId id(ByteBuffer data) throws IOException {
+    byte id = data.get(data.position());
+    if (id < 0 || id >= MessageId.values.length || id == MessageId.COMPRESSED.ordinal()) {
+      throw new IOException("Unknown compressed frame id " + id + ".");
+    }
+    return MessageId.values[id];
+  }
+
+  /**
+   * @param data The payload of a COMPRESSED frame.
+   * @return The original payload in a pooled buffer ready for reading, which the caller has to
+   *     release.
+   */
+  public static ByteBuffer inflate(ByteBuffer data, int maxBytes) throws IOException {
+    int length = data.getInt(data.position() + 1);
+    if (length < 0 || length > maxBytes) {
+      throw new IOException("Compressed frame of " + length + " bytes is too big.");
+    }
+    ByteBuffer payload = data.duplicate();
+    payload.position(payload.position() + INNER_HEADER);
+    ByteBuffer out = BufferPool.acquire(length);
+    Inflater inflater = inflater();
+    try {
+      inflater.setInput(payload);
+      while (!inflater.finished()) {
+        if (inflater.inflate(out) == 0
+            && !inflater.finished()
+            && (inflater.needsInput() || inflater.needsDictionary() || !out.hasRemaining())) {
+          break;
+        }
+      }
+      if (!inflater.finished() || out.position() != length) {
+        BufferPool.release(out);
+        throw new IOException("Compressed frame is corrupt.");
+      }
+    } catch (DataFormatException e) {
+      BufferPool.release(out);
+      throw new IOException("Compressed frame is corrupt.", e);
+    } finally {
+      release(inflater);
+    }
+    out.flip();
+    return out;
+  }
+
+  private static Deflater deflater() {
+    Deflater deflater = deflaters.poll();
+    return deflater != null ? deflater : new Deflater(LEVEL);
+  }
+
+  private static Inflater inflater() {
+    Inflater inflater = inflaters.poll();
+    return inflater != null ? inflater : new Inflater();
+  }
+
+  private static void release(Deflater deflater) {
+    deflater.reset();
+    if (deflaters.size() < MAX_POOLED) {
+      deflaters.offer(deflater);
+    } else {
+      deflater.end();
+    }
+  }
+
+  private static void release(Inflater inflater) {
+    inflater.reset();
+    if (inflaters.size() < MAX_POOLED) {
+      inflaters.offer(inflater);
+    } else {
+      inflater.end();
+    }
+  }
+}
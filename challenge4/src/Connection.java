@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A Connection is a single non-blocking client of the {@link NioServer}. Incoming frames are split
+ * by a {@link FrameDecoder} whose buffer is reused for the whole life of the connection, so an idle
+ * connection only costs a small buffer rather than a whole thread. Outgoing frames are shared with
+ * every other connection they are sent to and each batch from the session's outbound queue is
+ * written with a single gathering write.
+ */
+public class Connection implements Transport {
+  static final int MAX_GATHER = 64;
+
+  final SocketChannel channel;
+  final SelectionKey key;
+  final Session session;
+  private final FrameDecoder decoder;
+  // The batch taken from the outbound queue that the socket has not fully accepted yet.
+  private final ArrayDeque<Frame> inflight = new ArrayDeque<>();
+  private final ArrayDeque<ByteBuffer> inflightBytes = new ArrayDeque<>();
+  private final NioServer server;
+  // Set by whichever thread found the outbound queue full.
+  private volatile boolean overflowed = false;
+
+  public Connection(
+      NioServer server,
+      SocketChannel channel,
+      SelectionKey key,
+      int connectionId,
+      State state,
+      String salt) {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+    this.session = new Session(connectionId, state, salt, this);
+    this.decoder = new FrameDecoder(session::onFrame);
+  }
+
+  /**
+   * Reads whatever is available and hands every complete frame to the session. Partial frames are
+   * kept in the read buffer until the rest of them arrives.
+   *
+   * @return false once the client has closed the connection.
+   */
+  public boolean read() throws IOException, ClassNotFoundException {
+    if (decoder.read(channel) == -1) {
+      return false;
+    }
+    decoder.decode();
+    return true;
+  }
+
+  @Override
+  public void onQueued() {
+    server.markDirty(this);
+  }
+
+  @Override
+  public void onMessagesAvailable() {
+    server.markReady(this);
+  }
+
+  @Override
+  public void disconnect() {
+    overflowed = true;
+    server.markDirty(this);
+  }
+
+  /** @return How many frames are waiting to be written, including a partially written batch. */
+  public int queueDepth() {
+    return session.outbound.depth() + inflight.size();
+  }
+
+  /**
+   * Writes the next batches of queued frames with one gathering write each, for as long as the
+   * socket takes them without blocking.
+   *
+   * @return -1 if everything has been written, 0 if the socket is full, otherwise how many
+   *     nanoseconds to wait before the queue should be flushed again.
+   */
+  public long flush() throws IOException {
+    if (overflowed) {
+      throw new IOException("Client could not keep up with its messages.");
+    }
+    long linger = -1;
+    while (true) {
+      if (inflight.isEmpty()) {
+        linger = session.outbound.lingerNanos(System.nanoTime());
+        if (linger != 0) {
+          break;
+        }
+        Frame[] batch = server.batch;
+        int count = session.outbound.poll(batch);
+        for (int i = 0; i < count; i++) {
+          inflight.add(batch[i]);
+          inflightBytes.add(batch[i].bytes());
+          batch[i] = null;
+        }
+      }
+      ByteBuffer[] gather = server.gather;
+      int buffers = 0;
+      for (ByteBuffer bytes : inflightBytes) {
+        gather[buffers++] = bytes;
+      }
+      channel.write(gather, 0, buffers);
+      // So that a big frame is not kept alive once it has been released.
+      Arrays.fill(gather, 0, buffers, null);
+      while (!inflightBytes.isEmpty() && !inflightBytes.peek().hasRemaining()) {
+        inflightBytes.poll();
+        inflight.poll().release();
+      }
+      if (!inflight.isEmpty()) {
+        linger = 0;
+        break;
+      }
+    }
+    if (key.isValid()) {
+      int interest = SelectionKey.OP_READ;
+      if (linger == 0) {
+        interest |= SelectionKey.OP_WRITE;
+      }
+      key.interestOps(interest);
+    }
+    return linger;
+  }
+
+  public void close() {
+    session.close();
+    decoder.close();
+    key.cancel();
+    while (!inflight.isEmpty()) {
+      inflightBytes.poll();
+      inflight.poll().release();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.err.println(e.getMessage());
+    }
+  }
+}
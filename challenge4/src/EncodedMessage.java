@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A message together with its encoded frames. The binary frame is encoded as soon as the message is
+ * added to the {@link State} and the serialized one the first time a client without the binary
+ * codec needs it, so however many clients receive the message it is only ever encoded once per
+ * codec. Big messages are compressed the first time a client that asked for compression needs
+ * them, so the compressed frame is shared by the whole fan-out too. The frames belong to the log of
+ * the message's room and are released when the log overwrites them or the room is removed.
+ */
+public class EncodedMessage {
+  public final Message message;
+  // When the message was added to the state, to measure how long it takes to reach every client.
+  final long publishedNanos = System.nanoTime();
+  // Where the message is in the history, or -1 if it could not be stored. Set before publishing.
+  long sequence = -1;
+  private final Frame binary;
+  private Frame serialized;
+  // Null if the message has not been compressed yet or did not get any smaller.
+  private Frame compressed;
+  private boolean compressionTried = false;
+  private boolean released = false;
+
+  public EncodedMessage(Message message) {
+    this.message = message;
+    ByteBuffer buffer = BufferPool.acquire(BinaryCodec.messageSize(message));
+    BinaryCodec.putMessage(buffer, MessageId.MESSAGE_RECEIVED, message);
+    buffer.flip();
+    binary = Frame.pooled(buffer);
+  }
+
+  /** @return A view of the binary frame, which is only valid until the message is released. */
+  public ByteBuffer binaryBytes() {
+    return binary.bytes();
+  }
+
+  /** @return Whether the connection should receive this message, which is not its own. */
+  public boolean isFor(int connectionId) {
+    return message.user != connectionId;
+  }
+
+  /**
+   * @return The frame with an extra reference that the caller has to release, or null if the
+   *     message has already been released by the log.
+   */
+  public Frame retainFrame(boolean useBinary, boolean useCompression) throws IOException {
+    Frame frame;
+    if (useBinary && useCompression && binary.size() >= Compression.MIN_BYTES) {
+      synchronized (this) {
+        if (released) {
+          return null;
+        }
+        if (!compressionTried) {
+          compressionTried = true;
+          compressed = Compression.compress(binary.bytes());
+        }
+        frame = compressed != null ? compressed : binary;
+      }
+    } else if (useBinary) {
+      frame = binary;
+    } else {
+      synchronized (this) {
+        if (released) {
+          return null;
+        }
+        if (serialized == null) {
+          serialized = Frame.wrap(MessageToByte.receivedMessage(message));
+        }
+        frame = serialized;
+      }
+    }
+    return frame.retain() ? frame : null;
+  }
+
+  public synchronized void release() {
+    released = true;
+    binary.release();
+    if (serialized != null) {
+      serialized.release();
+    }
+    if (compressed != null) {
+      compressed.release();
+    }
+  }
+}
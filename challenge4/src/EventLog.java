@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records who connected and what they said without ever holding up a client. Each event is copied
+ * into a fixed-size slot of a ring buffer, claimed with a single compare-and-set, and a background
+ * thread formats the events as tab-separated lines and writes them to a file through a {@link
+ * FileChannel} in batches. Nothing is allocated and no lock is taken when logging, and strings that
+ * don't fit in a slot are cut short. Once chat.events.capacity events are waiting any more are
+ * dropped rather than slowing anything down.
+ *
+ * <p>The file is chat.events.file (events.log in the log directory), which is rotated once it is
+ * bigger than chat.events.maxBytes keeping chat.events.files old files, and an empty name turns it
+ * off. Only one in chat.console.sample events is printed to the console as well, none with 0 or
+ * chat.console=false.
+ */
+public class EventLog {
+  /** What happened, which is the second field of every line. */
+  public enum Event {
+    CONNECTED,
+    RECONNECTED,
+    DISCONNECTED,
+    MESSAGE,
+    ENCRYPTED,
+  }
+
+  static final int RECORD_BYTES = 256;
+  private static final int MAX_NAME_BYTES = 64;
+  // The time, the event and the connection id, followed by the length prefixed strings.
+  private static final int HEADER = 8 + 1 + 4;
+  private static final int BATCH_BYTES = 64 * 1024;
+  private static final long IDLE_PARK_NANOS = 1_000_000;
+  private static final Event[] events = Event.values();
+  private static final byte[][] eventNames = new byte[events.length][];
+  // Longer than any formatted event could be.
+  private static final int MAX_LINE_BYTES = 2 * RECORD_BYTES;
+
+  static {
+    for (Event event : events) {
+      eventNames[event.ordinal()] = event.name().getBytes(StandardCharsets.US_ASCII);
+    }
+  }
+
+  private static final EventLog shared =
+      new EventLog(
+          file(),
+          Integer.getInteger("chat.events.capacity", 8192),
+          Boolean.parseBoolean(System.getProperty("chat.console", "true"))
+              ? Integer.getInteger("chat.console.sample", 1)
+              : 0);
+
+  private final Path file;
+  private final long maxBytes = Long.getLong("chat.events.maxBytes", 16 * 1024 * 1024);
+  private final int maxFiles = Integer.getInteger("chat.events.files", 4);
+  private final int consoleSample;
+  private final int mask;
+  private final ByteBuffer ring;
+  // The sequence number of the event in each slot once it has been written, or -1.
+  private final AtomicLongArray published;
+  // The next sequence number to claim and the next one for the writer to format.
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long consumed = 0;
+  private volatile Thread writer;
+  // Set whilst the writer is parked, so that loggers only wake it up when they need to.
+  private volatile boolean idle = false;
+  private final LongAdder dropped = new LongAdder();
+  // Only used by the writer.
+  private long formattedSecond = Long.MIN_VALUE;
+  private byte[] secondBytes;
+
+  /**
+   * @param file Where to write the events, or null to only print them.
+   * @param capacity How many events can wait to be written, rounded up to a power of two.
+   * @param consoleSample Prints one in this many events, or none if it is 0.
+   */
+  public EventLog(Path file, int capacity, int consoleSample) {
+    this.file = file;
+    this.consoleSample = consoleSample;
+    int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = slots - 1;
+    ring = ByteBuffer.allocate(slots * RECORD_BYTES);
+    published = new AtomicLongArray(slots);
+    for (int i = 0; i < slots; i++) {
+      published.set(i, -1);
+    }
+    if (file != null || consoleSample > 0) {
+      Thread thread = new Thread(this::write, "event-log");
+      thread.setDaemon(true);
+      writer = thread;
+      thread.start();
+    }
+  }
+
+  public static EventLog shared() {
+    return shared;
+  }
+
+  public static void log(Event event, int id, String username) {
+    shared.record(event, id, username, null, null);
+  }
+
+  /** @param room The room the message was sent to, or null for the lobby. */
+  public static void log(Event event, int id, String username, String room, String text) {
+    shared.record(event, id, username, room, text);
+  }
+
+  /** @return How many events were dropped because the writer could not keep up. */
+  public static long dropped() {
+    return shared.droppedEvents();
+  }
+
+  public long droppedEvents() {
+    return dropped.sum();
+  }
+
+  /** @return How many events have been formatted by the writer so far. */
+  long written() {
+    return consumed;
+  }
+
+  /** Copies the event into the next free slot, or drops it if there is none. */
+  public void record(Event event, int id, String username, String room, String text) {
+    if (writer == null) {
+      return;
+    }
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed > mask) {
+        dropped.increment();
+        return;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    int slot = (int) (sequence & mask);
+    int start = slot * RECORD_BYTES;
+    int end = start + RECORD_BYTES;
+    ring.putLong(start, System.currentTimeMillis());
+    ring.put(start + 8, (byte) event.ordinal());
+    ring.putInt(start + 9, id);
+    int position = putString(start + HEADER, start + HEADER + 2 + MAX_NAME_BYTES, username);
+    position = putString(position, Math.min(end, position + 2 + MAX_NAME_BYTES), room);
+    putString(position, end, text);
+    published.set(slot, sequence);
+    if (idle) {
+      LockSupport.unpark(writer);
+    }
+  }
+
+  /**
+   * Writes the string's length as a short followed by as much of it as fits as UTF-8, using
+   * absolute puts so that any number of threads can fill their own slots at once.
+   *
+   * @return Where the next string starts.
+   */
+  private int putString(int position, int end, String string) {
+    int start = position;
+    position += 2;
+    if (string != null) {
+      for (int i = 0; i < string.length(); i++) {
+        int c = string.charAt(i);
+        if (c < 0x80) {
+          if (position + 1 > end) {
+            break;
+          }
+          ring.put(position++, (byte) c);
+        } else if (c < 0x800) {
+          if (position + 2 > end) {
+            break;
+          }
+          ring.put(position++, (byte) (0xc0 | c >> 6));
+          ring.put(position++, (byte) (0x80 | c & 0x3f));
+        } else if (Character.isHighSurrogate((char) c) && i + 1 < string.length()) {
+          if (position + 4 > end) {
+            break;
+          }
+          int point = Character.toCodePoint((char) c, string.charAt(++i));
+          ring.put(position++, (byte) (0xf0 | point >> 18));
+          ring.put(position++, (byte) (0x80 | point >> 12 & 0x3f));
+          ring.put(position++, (byte) (0x80 | point >> 6 & 0x3f));
+          ring.put(position++, (byte) (0x80 | point & 0x3f));
+        } else {
+          if (position + 3 > end) {
+            break;
+          }
+          ring.put(position++, (byte) (0xe0 | c >> 12));
+          ring.put(position++, (byte) (0x80 | c >> 6 & 0x3f));
+          ring.put(position++, (byte) (0x80 | c & 0x3f));
+        }
+      }
+    }
+    ring.putShort(start, (short) (position - start - 2));
+    return position;
+  }
+
+  /**
+   * Formats every event as soon as it is published, writing them out whenever it runs dry. The
+   * strings are already UTF-8 so they are copied into the batch byte by byte, and the time is only
+   * formatted once a second.
+   */
+  private void write() {
+    ByteBuffer out = ByteBuffer.allocate(BATCH_BYTES);
+    FileChannel channel = open();
+    long next = 0;
+    while (true) {
+      int slot = (int) (next & mask);
+      if (published.get(slot) != next) {
+        channel = flush(channel, out);
+        idle = true;
+        // Checked again in case an event was published before the loggers could see we are idle.
+        if (published.get(slot) != next) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        idle = false;
+        continue;
+      }
+      if (out.remaining() < MAX_LINE_BYTES) {
+        channel = flush(channel, out);
+      }
+      int lineStart = out.position();
+      format(slot * RECORD_BYTES, out);
+      // The slot can be reused as soon as it has been formatted.
+      consumed = ++next;
+      if (consoleSample > 0 && next % consoleSample == 0) {
+        System.out.print(
+            new String(out.array(), lineStart, out.position() - lineStart, StandardCharsets.UTF_8));
+      }
+      if (channel == null) {
+        out.clear();
+      }
+    }
+  }
+
+  private void format(int start, ByteBuffer out) {
+    long millis = ring.getLong(start);
+    long second = Math.floorDiv(millis, 1000);
+    if (second != formattedSecond) {
+      // Such as 2024-01-01T12:00:00 followed by the milliseconds.
+      formattedSecond = second;
+      String time = Instant.ofEpochSecond(second).toString();
+      secondBytes = time.substring(0, time.length() - 1).getBytes(StandardCharsets.US_ASCII);
+    }
+    out.put(secondBytes).put((byte) '.');
+    int fraction = Math.floorMod(millis, 1000);
+    out.put((byte) ('0' + fraction / 100)).put((byte) ('0' + fraction / 10 % 10));
+    out.put((byte) ('0' + fraction % 10)).put((byte) 'Z').put((byte) '\t');
+    out.put(eventNames[ring.get(start + 8)]).put((byte) '\t');
+    out.put(Integer.toString(ring.getInt(start + 9)).getBytes(StandardCharsets.US_ASCII));
+    int position = start + HEADER;
+    for (int i = 0; i < 3; i++) {
+      int length = ring.getShort(position);
+      out.put((byte) '\t');
+      for (int j = position + 2; j < position + 2 + length; j++) {
+        byte b = ring.get(j);
+        // Messages can have tabs and new lines in them which would break up the fields, and
+        // these bytes are never part of a longer UTF-8 character.
+        out.put(b == '\t' || b == '\n' || b == '\r' ? (byte) ' ' : b);
+      }
+      position += 2 + length;
+    }
+    out.put((byte) '\n');
+  }
+
+  /** @return The channel to write to next, which is a new file if this one got too big. */
+  private FileChannel flush(FileChannel channel, ByteBuffer out) {
+    if (channel == null || out.position() == 0) {
+      return channel;
+    }
+    out.flip();
+    try {
+      while (out.hasRemaining()) {
+        channel.write(out);
+      }
+      if (channel.size() >= maxBytes) {
+        channel.close();
+        rotate();
+        channel = open();
+      }
+    } catch (IOException e) {
+      System.err.println("Could not write events: " + e.getMessage());
+    }
+    out.clear();
+    return channel;
+  }
+
+  /** Renames events.log to events.log.1, events.log.1 to events.log.2 and so on. */
+  private void rotate() throws IOException {
+    for (int i = maxFiles; i > 0; i--) {
+      Path from = i == 1 ? file : file.resolveSibling(file.getFileName() + "." + (i - 1));
+      if (Files.exists(from)) {
+        Files.move(
+            from,
+            file.resolveSibling(file.getFileName() + "." + i),
+            StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+  }
+
+  private FileChannel open() {
+    if (file == null) {
+      return null;
+    }
+    try {
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      return FileChannel.open(
+          file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      System.err.println("Could not open " + file + ": " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static Path file() {
+    String name =
+        System.getProperty(
+            "chat.events.file", MessageStore.DIRECTORY.resolve("events.log").toString());
+    return name.isEmpty() ? null : Path.of(name);
+  }
+}
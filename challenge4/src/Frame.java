@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is shared by every client it is sent to. It is never modified once created
+ * so each client writes from its own view of the same bytes. Frames in pooled buffers are reference
+ * counted and the buffer goes back to the {@link BufferPool} once the last reference is released.
+ */
+public class Frame {
+  private final ByteBuffer buffer;
+  private final boolean pooled;
+  private final AtomicInteger references = new AtomicInteger(1);
+
+  private Frame(ByteBuffer buffer, boolean pooled) {
+    this.buffer = buffer;
+    this.pooled = pooled;
+  }
+
+  public static Frame wrap(byte[] frame) {
+    return new Frame(ByteBuffer.wrap(frame), false);
+  }
+
+  /**
+   * @param buffer A buffer ready for reading that is never written to again, such as a slice of a
+   *     mapped {@link MessageStore} segment.
+   */
+  public static Frame wrap(ByteBuffer buffer) {
+    return new Frame(buffer, false);
+  }
+
+  /** @param buffer A buffer from the {@link BufferPool} that has been flipped ready for reading. */
+  public static Frame pooled(ByteBuffer buffer) {
+    return new Frame(buffer, true);
+  }
+
+  /**
+   * @return A view of the frame with its own position, so it can be written independently. The
+   *     view shares the frame's bytes and must never be written to.
+   */
+  public ByteBuffer bytes() {
+    return buffer.duplicate();
+  }
+
+  public int size() {
+    return buffer.remaining();
+  }
+
+  /** @return The id of the frame, or of the first one if several frames were joined together. */
+  public MessageId id() {
+    return MessageId.values[buffer.get(buffer.position() + 4)];
+  }
+
+  /** @return false if the frame has already been released and must not be used. */
+  public boolean retain() {
+    int count;
+    do {
+      count = references.get();
+      if (count == 0) {
+        return false;
+      }
+    } while (!references.compareAndSet(count, count + 1));
+    return true;
+  }
+
+  public void release() {
+    if (references.decrementAndGet() == 0 && pooled) {
+      BufferPool.release(buffer);
+    }
+  }
+}
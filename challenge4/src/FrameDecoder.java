@@ -0,0 +1,143 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits the bytes read from a client into frames without allocating anything per frame. Bytes are
+ * read into a single small buffer and each complete frame is handed to the handler as a view of
+ * that buffer, so the handler can parse it in place but must not keep it.
+ * Partial frames stay in the buffer until the rest of them arrives, which lets non-blocking
+ * connections read whatever happens to be available.
+ *
+ * <p>The length of a frame is checked before anything is allocated for it. Frames with a payload
+ * bigger than chat.frame.maxBytes or an unknown id fail with an IOException, so a client can no
+ * longer make the server allocate gigabytes by sending a big length. The buffer only grows into one
+ * from the {@link BufferPool}, or past it, for frames that need it and goes back to the small one
+ * once they are handled, so an idle connection never holds on to a pooled buffer.
+ */
+public class FrameDecoder {
+  static final int MAX_FRAME_BYTES = Integer.getInteger("chat.frame.maxBytes", 1024 * 1024);
+  static final int INITIAL_BYTES = 512;
+  private static final int HEADER = 5;
+
+  /** Handles a single frame, whose payload is between the position and limit of the data. */
+  public interface Handler {
+    void onFrame(MessageId id, ByteBuffer data) throws IOException, ClassNotFoundException;
+  }
+
+  private final Handler handler;
+  private final int maxFrameBytes;
+  // Kept for the whole life of the decoder and only swapped out whilst a frame needs more room.
+  private final ByteBuffer small = ByteBuffer.allocate(INITIAL_BYTES);
+  // Always in write mode between calls, holding the start of any partial frame.
+  private ByteBuffer buffer = small;
+
+  public FrameDecoder(Handler handler) {
+    this(handler, MAX_FRAME_BYTES);
+  }
+
+  public FrameDecoder(Handler handler, int maxFrameBytes) {
+    this.handler = handler;
+    this.maxFrameBytes = maxFrameBytes;
+  }
+
+  /** @return How many bytes were read, or -1 if the channel has reached the end. */
+  public int read(ReadableByteChannel channel) throws IOException {
+    return channel.read(buffer);
+  }
+
+  /**
+   * Reads whatever is available, only blocking if nothing is.
+   *
+   * @return How many bytes were read, or -1 if the stream has reached the end.
+   */
+  public int read(InputStream is) throws IOException {
+    int read =
+        is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+    if (read > 0) {
+      buffer.position(buffer.position() + read);
+    }
+    return read;
+  }
+
+  /** Blocks until some bytes arrive and then handles every frame that is now complete. */
+  public void readFrames(InputStream is) throws IOException, ClassNotFoundException {
+    if (read(is) == -1) {
+      throw new EOFException();
+    }
+    decode();
+  }
+
+  /** Hands every complete frame in the buffer to the handler, in the order they were read. */
+  public void decode() throws IOException, ClassNotFoundException {
+    // How big the buffer has to be for the partial frame at the end of it.
+    int needed = 0;
+    buffer.flip();
+    try {
+      int end = buffer.limit();
+      while (end - buffer.position() >= HEADER) {
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        byte id = buffer.get(start + 4);
+        if (length < 0 || length > maxFrameBytes) {
+          throw new IOException("Frame of " + length + " bytes is too big.");
+        }
+        if (id < 0 || id >= MessageId.values.length) {
+          throw new IOException("Unknown frame id " + id + ".");
+        }
+        if (end - start < HEADER + length) {
+          needed = HEADER + length;
+          // Make sure the rest of the frame will fit once it arrives.
+          if (buffer.capacity() < HEADER + length) {
+            buffer.compact();
+            buffer = resize(buffer, HEADER + length, HEADER + maxFrameBytes);
+            buffer.flip();
+          }
+          break;
+        }
+        buffer.position(start + HEADER).limit(start + HEADER + length);
+        try {
+          handler.onFrame(MessageId.values[id], buffer);
+        } catch (RuntimeException e) {
+          // Such as reading past the end of a frame that is too short.
+          throw new IOException("Malformed " + MessageId.values[id] + " frame.", e);
+        } finally {
+          buffer.limit(end).position(start + HEADER + length);
+        }
+      }
+    } finally {
+      buffer.compact();
+    }
+    // Give back the memory of a big frame once it has been handled.
+    if (buffer != small && needed <= INITIAL_BYTES && buffer.position() <= INITIAL_BYTES) {
+      ByteBuffer big = buffer;
+      buffer = small;
+      buffer.clear();
+      big.flip();
+      buffer.put(big);
+      BufferPool.release(big);
+    }
+  }
+
+  /** Hands the buffer back to the pool, after which the decoder must not be used. */
+  public void close() {
+    if (buffer != null && buffer != small) {
+      BufferPool.release(buffer);
+    }
+    buffer = null;
+  }
+
+  /** @return A bigger buffer in write mode containing everything in the old buffer. */
+  private ByteBuffer resize(ByteBuffer buffer, int minimum, int maximum) {
+    ByteBuffer bigger =
+        BufferPool.acquire(Math.max(minimum, Math.min(maximum, buffer.capacity() * 2)));
+    buffer.flip();
+    bigger.put(buffer);
+    if (buffer != small) {
+      BufferPool.release(buffer);
+    }
+    return bigger;
+  }
+}
@@ -0,0 +1,85 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts how often values such as latencies were seen, in the style of an HDR histogram. Values are
+ * counted in buckets that are 1/16th of a power of two wide so every percentile is accurate to
+ * within about 6% whatever its size, using a fixed array of under a thousand counts. Recording a
+ * value never allocates or locks so it can be done by any thread on every message.
+ */
+public class Histogram {
+  // Values below this are counted exactly.
+  private static final int LINEAR = 32;
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // The magnitude (highest bit) of the smallest value that is not counted exactly.
+  private static final int FIRST_MAGNITUDE = 5;
+
+  private final AtomicLongArray counts =
+      new AtomicLongArray(LINEAR + (63 - FIRST_MAGNITUDE) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** @param value A value that is at least 0, anything smaller is counted as 0. */
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(index(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    max.accumulateAndGet(value, Math::max);
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  public double mean() {
+    long recorded = count.get();
+    return recorded == 0 ? 0 : (double) sum.get() / recorded;
+  }
+
+  /**
+   * @param percentile From 0 to 100.
+   * @return The largest value that falls in the same bucket as the value at the percentile, or 0
+   *     if nothing has been recorded.
+   */
+  public long percentile(double percentile) {
+    long recorded = count.get();
+    if (recorded == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(recorded * percentile / 100));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highest(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int index(long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+    return LINEAR + (magnitude - FIRST_MAGNITUDE) * SUB_BUCKETS + subBucket;
+  }
+
+  /** @return The largest value counted in a bucket. */
+  private static long highest(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int magnitude = (index - LINEAR) / SUB_BUCKETS + FIRST_MAGNITUDE;
+    long subBucket = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << (magnitude - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -0,0 +1,357 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects a number of fake clients to a server on localhost that all send messages to each other.
+ * Every message contains the time it was sent so the receivers can work out how long it took to be
+ * delivered. Run it against the different server modes to compare them. Given several ports the
+ * clients are spread evenly over the nodes of a cluster.
+ *
+ * <p>The mix of traffic can be changed with system properties. With load.encrypted set to a
+ * fraction of the messages, those are sent encrypted to one of load.passwords passwords that the
+ * clients register between them, so they only reach the clients sharing that password. The server
+ * only ever sees password hashes so made up hashes are used rather than spending seconds on BCrypt.
+ * With load.churn set, that many extra clients per second join and leave again whilst messages are
+ * being sent. Setting load.json prints a JSON report instead.
+ */
+public class LoadGenerator {
+  private static final String PREFIX = "load ";
+  private static final double[] PERCENTILES = {0.50, 0.90, 0.99, 0.999};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+  final int clients;
+  final int messages;
+  final long intervalMillis;
+  final int[] ports;
+  final double encrypted = Double.parseDouble(System.getProperty("load.encrypted", "0"));
+  final int passwords = Integer.getInteger("load.passwords", encrypted > 0 ? 4 : 0);
+  final double churnPerSecond = Double.parseDouble(System.getProperty("load.churn", "0"));
+  final boolean json = Boolean.getBoolean("load.json");
+
+  public LoadGenerator(int clients, int messages, long intervalMillis, int... ports) {
+    this.clients = clients;
+    this.messages = messages;
+    this.intervalMillis = intervalMillis;
+    this.ports = ports;
+    if (encrypted > 0 && passwords == 0) {
+      throw new IllegalArgumentException("Encrypted messages need load.passwords to be above 0.");
+    }
+  }
+
+  /**
+   * @param args Number of clients, messages sent by each client, milliseconds between each message
+   *     and the port of the server, or a comma separated list of ports of a cluster.
+   */
+  public static void main(String[] args) throws Exception {
+    int clients = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int messages = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    long interval = args.length > 2 ? Long.parseLong(args[2]) : 10;
+    String[] ports = (args.length > 3 ? args[3] : "3001").split(",");
+    int[] parsed = new int[ports.length];
+    for (int i = 0; i < ports.length; i++) {
+      parsed[i] = Integer.parseInt(ports[i].trim());
+    }
+    new LoadGenerator(clients, messages, interval, parsed).run();
+  }
+
+  /** @return How many messages per second were delivered. */
+  public double run() throws Exception {
+    ExecutorService executor = Server.handlerExecutor();
+    List<FakeClient> fakeClients = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      fakeClients.add(new FakeClient("load" + i, ports[i % ports.length], password(i)));
+    }
+    // Wait until everyone has joined so that every client receives every message.
+    for (FakeClient client : fakeClients) {
+      client.join();
+      executor.execute(client::receive);
+    }
+    if (passwords > 0) {
+      awaitPasswords(fakeClients);
+    }
+    long expected = expected();
+    CountDownLatch sent = new CountDownLatch(clients);
+    AtomicBoolean sending = new AtomicBoolean(true);
+    AtomicLong churned = new AtomicLong();
+    if (churnPerSecond > 0) {
+      executor.execute(() -> churn(executor, sending, churned));
+    }
+    long start = System.nanoTime();
+    for (FakeClient client : fakeClients) {
+      executor.execute(
+          () -> {
+            client.send();
+            sent.countDown();
+          });
+    }
+    sent.await();
+    sending.set(false);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    while (received(fakeClients) < expected && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    long elapsed = System.nanoTime() - start;
+
+    long[] latencies = new long[0];
+    long encryptedDelivered = 0;
+    for (FakeClient client : fakeClients) {
+      latencies = client.latencies(latencies);
+      encryptedDelivered += client.encryptedCount();
+      client.socket.close();
+    }
+    Arrays.sort(latencies);
+    double seconds = elapsed / 1e9;
+    if (json) {
+      System.out.println(json(latencies, expected, encryptedDelivered, churned.get(), seconds));
+    } else {
+      System.out.println("connections: " + clients);
+      System.out.printf(
+          "messages delivered: %d/%d in %.2f s (%.0f msg/s)%n",
+          latencies.length, expected, seconds, latencies.length / seconds);
+      System.out.printf(
+          "latency p50: %.3f ms, p99: %.3f ms%n",
+          percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6);
+      if (churnPerSecond > 0) {
+        System.out.printf("churn: %d joins and leaves%n", churned.get());
+      }
+    }
+    executor.shutdownNow();
+    return latencies.length / seconds;
+  }
+
+  /** @return The password client i registers, or null if there are no passwords. */
+  private String password(int client) {
+    return passwords == 0 ? null : "$2a$04$load" + client % passwords;
+  }
+
+  /** @return Whether the i-th message of each client is encrypted, spread evenly over them all. */
+  private boolean isEncrypted(int message) {
+    return Math.floor((message + 1) * encrypted) > Math.floor(message * encrypted);
+  }
+
+  /** @return How many messages should be delivered once every client has sent all of theirs. */
+  private long expected() {
+    int encryptedMessages = 0;
+    for (int i = 0; i < messages; i++) {
+      if (isEncrypted(i)) {
+        encryptedMessages += 1;
+      }
+    }
+    long expected = (long) clients * (clients - 1) * (messages - encryptedMessages);
+    for (int i = 0; i < clients && encryptedMessages > 0; i++) {
+      // Everyone else that registered the same password receives the encrypted ones.
+      int sharing = clients / passwords + (i % passwords < clients % passwords ? 1 : 0);
+      expected += (long) (sharing - 1) * encryptedMessages;
+    }
+    return expected;
+  }
+
+  /**
+   * Every client registers its password and then sends a plain message. The server handles each
+   * client's frames in order so once everyone has received everyone else's message, every
+   * password has been registered and encrypted messages reach everyone they should.
+   */
+  private void awaitPasswords(List<FakeClient> fakeClients) throws Exception {
+    for (FakeClient client : fakeClients) {
+      client.os.write(MessageToByte.password(client.password));
+      client.os.write(MessageToByte.message("ready"));
+    }
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+    for (FakeClient client : fakeClients) {
+      while (client.readyCount() < clients - 1 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  /**
+   * Joins and leaves with extra clients at a steady rate for as long as messages are sent. Each
+   * one joins on its own thread so a slow server does not lower the rate.
+   */
+  private void churn(ExecutorService executor, AtomicBoolean sending, AtomicLong churned) {
+    long interval = (long) (TimeUnit.SECONDS.toNanos(1) / churnPerSecond);
+    long next = System.nanoTime();
+    for (int count = 0; sending.get(); count++) {
+      String username = "churn" + count;
+      int port = ports[count % ports.length];
+      executor.execute(
+          () -> {
+            try {
+              FakeClient client = new FakeClient(username, port, null);
+              client.join();
+              client.socket.close();
+              churned.incrementAndGet();
+            } catch (IOException e) {
+              System.err.println(username + " could not join: " + e.getMessage());
+            }
+          });
+      next += interval;
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private String json(
+      long[] latencies, long expected, long encryptedDelivered, long churned, double seconds) {
+    StringBuilder report = new StringBuilder("{");
+    report.append("\"clients\": ").append(clients);
+    report.append(", \"nodes\": ").append(ports.length);
+    report.append(", \"messagesPerClient\": ").append(messages);
+    report.append(", \"intervalMillis\": ").append(intervalMillis);
+    report.append(", \"encryptedFraction\": ").append(encrypted);
+    report.append(", \"passwords\": ").append(passwords);
+    report.append(", \"churnPerSecond\": ").append(churnPerSecond);
+    report.append(", \"churned\": ").append(churned);
+    report.append(", \"expected\": ").append(expected);
+    report.append(", \"delivered\": ").append(latencies.length);
+    report.append(", \"encryptedDelivered\": ").append(encryptedDelivered);
+    report.append(", \"seconds\": ").append(String.format("%.3f", seconds));
+    report.append(", \"messagesPerSecond\": ");
+    report.append(String.format("%.1f", latencies.length / seconds));
+    report.append(", \"latencyMillis\": {");
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      report.append('"').append(PERCENTILE_NAMES[i]).append("\": ");
+      report.append(String.format("%.3f", percentile(latencies, PERCENTILES[i]) / 1e6));
+      report.append(", ");
+    }
+    long max = latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+    report.append("\"max\": ").append(String.format("%.3f", max / 1e6)).append("}}");
+    return report.toString();
+  }
+
+  private static long received(List<FakeClient> fakeClients) {
+    long total = 0;
+    for (FakeClient client : fakeClients) {
+      total += client.count();
+    }
+    return total;
+  }
+
+  static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[(int) Math.min(sorted.length - 1, Math.floor(percentile * sorted.length))];
+  }
+
+  private class FakeClient {
+    final String username;
+    final String password;
+    final Socket socket;
+    final DataInputStream is;
+    final OutputStream os;
+    private long[] latencies = new long[16];
+    private int count = 0;
+    private int encryptedCount = 0;
+    private int readyCount = 0;
+
+    FakeClient(String username, int port, String password) throws IOException {
+      this.username = username;
+      this.password = password;
+      socket = new Socket("localhost", port);
+      socket.setTcpNoDelay(true);
+      is = new DataInputStream(socket.getInputStream());
+      os = socket.getOutputStream();
+    }
+
+    void join() throws IOException {
+      readFrame(); // SALT
+      os.write(MessageToByte.init(username));
+      // Clients only receive messages sent after they joined so wait until the server agrees.
+      while (readFrame() != MessageId.LIST_USER) {}
+    }
+
+    void send() {
+      try {
+        for (int i = 0; i < messages; i++) {
+          String text = PREFIX + System.nanoTime();
+          if (isEncrypted(i)) {
+            os.write(MessageToByte.encrypted(new Message(password, text)));
+          } else {
+            os.write(MessageToByte.message(text));
+          }
+          if (intervalMillis > 0) {
+            Thread.sleep(intervalMillis);
+          }
+        }
+      } catch (IOException | InterruptedException e) {
+        System.err.println(username + " could not send: " + e.getMessage());
+      }
+    }
+
+    void receive() {
+      try {
+        while (true) {
+          byte[] input = new byte[5];
+          is.readFully(input);
+          byte[] data = new byte[ByteToMessage.integer(input)];
+          is.readFully(data);
+          if (MessageId.values[input[4]] == MessageId.MESSAGE_RECEIVED) {
+            Message message = ByteToMessage.receivedMessage(data);
+            if (message.message.startsWith(PREFIX)) {
+              long sentAt = Long.parseLong(message.message.substring(PREFIX.length()));
+              record(System.nanoTime() - sentAt, message.passwordHash != null);
+            } else {
+              ready();
+            }
+          }
+        }
+      } catch (IOException | ClassNotFoundException e) {
+        // The socket is closed once the run is over.
+      }
+    }
+
+    private MessageId readFrame() throws IOException {
+      byte[] input = new byte[5];
+      is.readFully(input);
+      is.readFully(new byte[ByteToMessage.integer(input)]);
+      return MessageId.values[input[4]];
+    }
+
+    private synchronized void record(long latency, boolean wasEncrypted) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count] = latency;
+      count += 1;
+      if (wasEncrypted) {
+        encryptedCount += 1;
+      }
+    }
+
+    private synchronized void ready() {
+      readyCount += 1;
+    }
+
+    synchronized int readyCount() {
+      return readyCount;
+    }
+
+    synchronized int encryptedCount() {
+      return encryptedCount;
+    }
+
+    synchronized int count() {
+      return count;
+    }
+
+    synchronized long[] latencies(long[] into) {
+      long[] all = Arrays.copyOf(into, into.length + count);
+      System.arraycopy(latencies, 0, all, into.length, count);
+      return all;
+    }
+  }
+}
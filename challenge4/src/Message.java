@@ -1,7 +1,15 @@
 public class Message implements java.io.Serializable {
+  // What it was before sealed was added, so clients built before then can still read messages.
+  private static final long serialVersionUID = 4688148695503127976L;
+
   public int user;
+  // Null if the message is sealed.
   public final String message;
   public String passwordHash;
+  // The room the message is sent to, or null for the lobby.
+  public String room;
+  // The body encrypted by a MessageCipher, which is only ever sent with the BinaryCodec.
+  public byte[] sealed;
 
   public Message(int user, String message) {
     this.user = user;
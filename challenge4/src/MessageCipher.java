@@ -0,0 +1,135 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals messages sent with a password with AES-GCM, so that only the clients that know the
+ * password can read them and nobody can change them unnoticed, unlike the rot cipher of the {@link
+ * Client}. The key is derived from the password with PBKDF2 once when the password is added and is
+ * kept with the cipher, so sealing a message costs a single pass of AES.
+ *
+ * <p>A sealed message is a MESSAGE_RECEIVED frame whose body is a random nonce followed by the
+ * encrypted UTF-8 text and its tag, rather than the text itself. The password hash is
+ * authenticated with it so it can't be moved to another room. Only clients that asked for sealed
+ * messages in their {@link MessageId#CODEC} frame are sent them. Ciphers are pooled rather than
+ * created for each message.
+ */
+public class MessageCipher {
+  /** The bit of the CODEC frame's features that asks for sealed messages. */
+  public static final byte FEATURE = 4;
+
+  static final int NONCE_BYTES = 12;
+  static final int TAG_BYTES = 16;
+  private static final String ALGORITHM = "AES/GCM/NoPadding";
+  private static final int ITERATIONS = Integer.getInteger("chat.cipher.iterations", 100_000);
+  private static final int KEY_BITS = 256;
+  private static final int MAX_POOLED = 16;
+  private static final SecureRandom random = new SecureRandom();
+  private static final ConcurrentLinkedQueue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+
+  private final String passwordHash;
+  private final SecretKey key;
+  private final byte[] associatedData;
+
+  /**
+   * Derives the key, which is slow on purpose so should only be done once per password.
+   *
+   * @param passwordHash The hash of the password with the server's salt, which salts the key too.
+   */
+  public MessageCipher(String password, String passwordHash) {
+    this.passwordHash = passwordHash;
+    associatedData = passwordHash.getBytes(StandardCharsets.UTF_8);
+    try {
+      PBEKeySpec spec =
+          new PBEKeySpec(password.toCharArray(), associatedData, ITERATIONS, KEY_BITS);
+      byte[] derived =
+          SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+      spec.clearPassword();
+      key = new SecretKeySpec(derived, "AES");
+    } catch (GeneralSecurityException e) {
+      // Every JDK has to support both PBKDF2 with SHA-256 and AES-GCM.
+      throw new IllegalStateException("Could not derive the key.", e);
+    }
+  }
+
+  /** @return The size of a sealed body for text that is this many bytes as UTF-8. */
+  static int sealedBytes(int textBytes) {
+    return NONCE_BYTES + textBytes + TAG_BYTES;
+  }
+
+  /**
+   * Encrypts the text straight into the body of a whole frame, first encoding it into a pooled
+   * buffer.
+   *
+   * @return A sealed MESSAGE_RECEIVED frame in a pooled buffer.
+   */
+  public Frame seal(String text) throws GeneralSecurityException {
+    ByteBuffer plain = BufferPool.acquire(BinaryCodec.utf8Length(text));
+    BinaryCodec.putUtf8(plain, text);
+    plain.flip();
+    int sealedBytes = sealedBytes(plain.remaining());
+    ByteBuffer out = BufferPool.acquire(BinaryCodec.sealedMessageSize(passwordHash, sealedBytes));
+    BinaryCodec.putSealedHeader(out, MessageId.MESSAGE_RECEIVED, passwordHash, sealedBytes);
+    byte[] nonce = new byte[NONCE_BYTES];
+    random.nextBytes(nonce);
+    out.put(nonce);
+    Cipher cipher = cipher();
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, nonce));
+      cipher.updateAAD(associatedData);
+      cipher.doFinal(plain, out);
+    } catch (GeneralSecurityException e) {
+      BufferPool.release(out);
+      throw e;
+    } finally {
+      release(cipher);
+      BufferPool.release(plain);
+    }
+    out.flip();
+    return Frame.pooled(out);
+  }
+
+  /**
+   * Decrypts a sealed body into a pooled buffer.
+   *
+   * @throws javax.crypto.AEADBadTagException If it was sealed with another password or has been
+   *     changed.
+   */
+  public String open(byte[] sealed) throws GeneralSecurityException {
+    if (sealed.length < NONCE_BYTES + TAG_BYTES) {
+      throw new GeneralSecurityException("Sealed message is too short.");
+    }
+    ByteBuffer plain = BufferPool.acquire(sealed.length - NONCE_BYTES - TAG_BYTES);
+    Cipher cipher = cipher();
+    try {
+      cipher.init(
+          Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BYTES * 8, sealed, 0, NONCE_BYTES));
+      cipher.updateAAD(associatedData);
+      cipher.doFinal(ByteBuffer.wrap(sealed, NONCE_BYTES, sealed.length - NONCE_BYTES), plain);
+      plain.flip();
+      return BinaryCodec.getUtf8(plain, plain.remaining());
+    } finally {
+      release(cipher);
+      BufferPool.release(plain);
+    }
+  }
+
+  private static Cipher cipher() throws GeneralSecurityException {
+    Cipher cipher = ciphers.poll();
+    return cipher != null ? cipher : Cipher.getInstance(ALGORITHM);
+  }
+
+  private static void release(Cipher cipher) {
+    if (ciphers.size() < MAX_POOLED) {
+      ciphers.offer(cipher);
+    }
+  }
+}
@@ -7,7 +7,17 @@ enum MessageId {
   MESSAGE_RECEIVED, // Sent to client when a different client sends a message.
   ADD_PASSWORD, // Sent to server when the client registers a new password.
   SALT, // Sent to client when first connected.
-  REMOVE_USER; // Sent to client when a different client disconnects.
+  REMOVE_USER, // Sent to client when a different client disconnects.
+  CODEC, // Sent to server before INIT by clients that understand the BinaryCodec, (contains the
+  // version and optionally the features it supports such as compression)
+  HISTORY, // Sent to server to ask for earlier messages and back to the client once they are sent.
+  PEER, // Sent between cluster nodes when they connect, (contains the node and the last event seen)
+  RELAY, // Sent between cluster nodes to relay a frame from one of the sender's own clients.
+  SUBSCRIBE, // Sent to server to join or leave a room, (contains whether to join and the room)
+  COMPRESSED, // Sent to client in place of a big frame if it asked for compression in CODEC.
+  RESUME, // Sent to server instead of INIT to resume a session with its token, and to client with
+  // the token to resume with next time or an empty one if the session could not be resumed.
+  RESTART; // Sent to client when the server is restarting, (contains how long to wait in ms)
 
   public static final MessageId[] values = values();
 }
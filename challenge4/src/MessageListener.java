@@ -0,0 +1,9 @@
+import java.util.EventListener;
+
+public interface MessageListener extends EventListener {
+  /**
+   * Called by the thread that changed who is connected, so it should only wake up whoever sends it.
+   * New messages only wake up the members of their room through their {@link Transport}.
+   */
+  void onMessagesAvailable();
+}
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * An append only log of every message on disk so that history survives a restart and clients can
+ * catch up on what was said before they joined. Each message is stored as its binary frame in a
+ * memory mapped segment file named after the sequence number of its first message. Once a segment
+ * is full a new one is started and only the newest chat.log.segments segments are kept.
+ *
+ * <p>Frames are written with their length last so that a frame cut short by a crash looks like the
+ * end of the segment. Every segment keeps a sparse index of roughly one sequence number every
+ * chat.log.indexBytes bytes so a replay only has to scan from the nearest indexed frame. Replayed
+ * frames are slices of the mapped segments, which are written to the socket without ever being
+ * copied onto the heap.
+ */
+public class MessageStore {
+  // Nodes of a cluster running in the same directory each need their own log.
+  static final Path DIRECTORY =
+      Path.of(
+          System.getProperty(
+              "chat.log.dir", Cluster.NODE_ID == 0 ? "chat-log" : "chat-log-" + Cluster.NODE_ID));
+  static final int SEGMENT_BYTES = Integer.getInteger("chat.log.segmentBytes", 16 * 1024 * 1024);
+  static final int RETAINED_SEGMENTS = Integer.getInteger("chat.log.segments", 8);
+  static final int INDEX_BYTES = Integer.getInteger("chat.log.indexBytes", 4096);
+  private static final int HEADER = 5;
+  static final int MAX_RUN = 64 * 1024;
+
+  /** Decides which stored frames a client is allowed to see. */
+  public interface Filter {
+    boolean accept(ByteBuffer frame);
+  }
+
+  private final Path directory;
+  private final int segmentBytes;
+  private final int retainedSegments;
+  private final int indexBytes;
+  private final ArrayList<Segment> segments = new ArrayList<>();
+
+  public MessageStore() throws IOException {
+    this(DIRECTORY, SEGMENT_BYTES, RETAINED_SEGMENTS, INDEX_BYTES);
+  }
+
+  public MessageStore(Path directory, int segmentBytes, int retainedSegments, int indexBytes)
+      throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.retainedSegments = Math.max(1, retainedSegments);
+    this.indexBytes = indexBytes;
+    Files.createDirectories(directory);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files.filter(MessageStore::isSegment).sorted()::iterator) {
+        segments.add(recover(file));
+      }
+    }
+    if (segments.isEmpty()) {
+      segments.add(create(0));
+    }
+  }
+
+  /**
+   * Stores a copy of the frame.
+   *
+   * @return The sequence number of the frame, or -1 if it is too big to ever fit in a segment.
+   */
+  public synchronized long append(ByteBuffer frame) throws IOException {
+    if (frame.remaining() > segmentBytes) {
+      return -1;
+    }
+    Segment segment = segments.get(segments.size() - 1);
+    if (segment.end + frame.remaining() > segment.map.capacity()) {
+      segment = roll(segment.nextSequence());
+    }
+    return segment.append(frame);
+  }
+
+  /** @return The sequence number the next message will be given. */
+  public synchronized long nextSequence() {
+    return segments.get(segments.size() - 1).nextSequence();
+  }
+
+  /** @return The sequence number of the oldest message still stored. */
+  public synchronized long firstSequence() {
+    return segments.get(0).base;
+  }
+
+  /**
+   * Hands the stored frames from one sequence number up to but excluding another to the consumer
+   * if the filter accepts them. Consecutive frames that are accepted are handed over together as
+   * one frame of up to MAX_RUN bytes.
+   *
+   * @param maxBytes Replaying stops at the first frame after this many bytes have been handed over.
+   * @return The sequence number to continue replaying from, which is never before from unless
+   *     that is after to.
+   */
+  public long replay(long from, long to, long maxBytes, Filter filter, Consumer<Frame> consumer) {
+    Segment[] snapshot;
+    int[] ends;
+    long sequence;
+    int position;
+    synchronized (this) {
+      to = Math.min(to, nextSequence());
+      int first = segments.size() - 1;
+      while (first > 0 && segments.get(first).base > from) {
+        first -= 1;
+      }
+      snapshot = segments.subList(first, segments.size()).toArray(new Segment[0]);
+      ends = new int[snapshot.length];
+      for (int i = 0; i < snapshot.length; i++) {
+        ends[i] = snapshot[i].end;
+      }
+      int entry = snapshot[0].floor(from);
+      sequence = snapshot[0].indexedSequence(entry);
+      position = snapshot[0].indexedPosition(entry);
+    }
+    if (maxBytes <= 0) {
+      // Nothing fits, so carry on from where we were asked to start rather than the index entry.
+      return Math.min(from, to);
+    }
+    long sent = 0;
+    for (int i = 0; i < snapshot.length && sequence < to && sent < maxBytes; i++) {
+      Segment segment = snapshot[i];
+      if (i > 0) {
+        sequence = segment.base;
+        position = 0;
+      }
+      // Skip to the first frame that was asked for using the lengths alone.
+      while (sequence < from && position < ends[i]) {
+        position += HEADER + segment.map.getInt(position);
+        sequence += 1;
+      }
+      int run = position;
+      while (sequence < to && position < ends[i] && sent < maxBytes) {
+        int size = HEADER + segment.map.getInt(position);
+        if (filter.accept(segment.map.slice(position, size))) {
+          if (position + size - run > MAX_RUN) {
+            segment.flush(run, position, consumer);
+            run = position;
+          }
+          sent += size;
+        } else {
+          segment.flush(run, position, consumer);
+          run = position + size;
+        }
+        position += size;
+        sequence += 1;
+      }
+      segment.flush(run, position, consumer);
+    }
+    // The index entry we started from can be before the first frame that was asked for.
+    return Math.min(Math.max(sequence, from), to);
+  }
+
+  private Segment roll(long base) throws IOException {
+    Segment segment = create(base);
+    segments.add(segment);
+    while (segments.size() > retainedSegments) {
+      Segment oldest = segments.remove(0);
+      oldest.channel.close();
+      // Frames that are still being replayed keep their mapping so can safely be deleted.
+      Files.deleteIfExists(oldest.path);
+    }
+    return segment;
+  }
+
+  private Segment create(long base) throws IOException {
+    return new Segment(directory.resolve(String.format("%020d.log", base)), base);
+  }
+
+  /** Opens an existing segment and finds where its last complete frame ends. */
+  private Segment recover(Path path) throws IOException {
+    String name = path.getFileName().toString();
+    Segment segment = new Segment(path, Long.parseLong(name.substring(0, name.length() - 4)));
+    int position = 0;
+    int capacity = segment.map.capacity();
+    while (position + HEADER <= capacity) {
+      int length = segment.map.getInt(position);
+      if (length <= 0 || position + HEADER + length > capacity) {
+        break;
+      }
+      segment.index(position);
+      position += HEADER + length;
+    }
+    return segment;
+  }
+
+  private static boolean isSegment(Path path) {
+    return path.getFileName().toString().matches("\\d{20}\\.log");
+  }
+
+  private final class Segment {
+    final Path path;
+    final long base;
+    final FileChannel channel;
+    final MappedByteBuffer map;
+    int count = 0;
+    int end = 0;
+    // Every indexed frame's offset from the base sequence number and its position in the file.
+    private int[] indexOffsets = new int[16];
+    private int[] indexPositions = new int[16];
+    private int indexSize = 0;
+
+    Segment(Path path, long base) throws IOException {
+      this.path = path;
+      this.base = base;
+      channel =
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentBytes, channel.size()));
+    }
+
+    long nextSequence() {
+      return base + count;
+    }
+
+    long append(ByteBuffer frame) {
+      map.put(end + 4, frame, frame.position() + 4, frame.remaining() - 4);
+      map.putInt(end, frame.getInt(frame.position()));
+      index(end);
+      return base + count - 1;
+    }
+
+    /** Counts the frame at the position and indexes it if it is far enough past the last one. */
+    void index(int position) {
+      if (indexSize == 0 || position - indexPositions[indexSize - 1] >= indexBytes) {
+        if (indexSize == indexOffsets.length) {
+          indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+          indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+        }
+        indexOffsets[indexSize] = count;
+        indexPositions[indexSize] = position;
+        indexSize += 1;
+      }
+      count += 1;
+      end = position + HEADER + map.getInt(position);
+    }
+
+    /** @return The last index entry at or before the sequence number. */
+    int floor(long sequence) {
+      int low = 0;
+      int high = indexSize - 1;
+      while (low < high) {
+        int middle = (low + high + 1) >>> 1;
+        if (base + indexOffsets[middle] <= sequence) {
+          low = middle;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return low;
+    }
+
+    long indexedSequence(int entry) {
+      return indexSize == 0 ? base : base + indexOffsets[entry];
+    }
+
+    int indexedPosition(int entry) {
+      return indexSize == 0 ? 0 : indexPositions[entry];
+    }
+
+    void flush(int start, int end, Consumer<Frame> consumer) {
+      if (end > start) {
+        consumer.accept(Frame.wrap(map.slice(start, end - start)));
+      }
+    }
+  }
+}
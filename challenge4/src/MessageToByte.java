@@ -6,6 +6,10 @@ import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 
 public class MessageToByte {
+  // What the value of a HISTORY frame means.
+  public static final byte HISTORY_LAST = 0;
+  public static final byte HISTORY_SINCE = 1;
+
   private static byte[] toByte(MessageId id, byte[] data) {
     ByteBuffer out = ByteBuffer.allocate(data.length + 5).putInt(data.length);
     out.put((((Integer) id.ordinal()).byteValue()));
@@ -34,6 +38,51 @@ public class MessageToByte {
     return toByte(MessageId.MESSAGE_RECEIVED, bObj.toByteArray());
   }
 
+  public static byte[] codec(byte version) {
+    return toByte(MessageId.CODEC, new byte[] {version});
+  }
+
+  /** @param features The bits of the optional features the client supports. */
+  public static byte[] codec(byte version, byte features) {
+    return toByte(MessageId.CODEC, new byte[] {version, features});
+  }
+
+  /** @return A HISTORY frame, asking for the last few messages or everything since a sequence. */
+  public static byte[] history(byte kind, long value) {
+    ByteBuffer data = ByteBuffer.allocate(9).put(kind).putLong(value);
+    return toByte(MessageId.HISTORY, data.array());
+  }
+
+  public static byte[] peer(int node, long lastSeen) {
+    ByteBuffer data = ByteBuffer.allocate(12).putInt(node).putLong(lastSeen);
+    return toByte(MessageId.PEER, data.array());
+  }
+
+  /** @param frame A whole frame that is copied into the RELAY frame. */
+  public static byte[] relay(int node, long sequence, ByteBuffer frame) {
+    ByteBuffer data = ByteBuffer.allocate(12 + frame.remaining()).putInt(node).putLong(sequence);
+    data.put(frame.duplicate());
+    return toByte(MessageId.RELAY, data.array());
+  }
+
+  /** @return A SUBSCRIBE frame that joins or leaves a room. */
+  public static byte[] subscribe(String room, boolean join) {
+    byte[] name = room.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer data = ByteBuffer.allocate(1 + name.length).put((byte) (join ? 1 : 0)).put(name);
+    return toByte(MessageId.SUBSCRIBE, data.array());
+  }
+
+  /** @return A RESUME frame with the token of a session, which is empty if it wasn't resumed. */
+  public static byte[] resume(String token) {
+    return toByte(MessageId.RESUME, token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** @return A RESTART frame telling the client how long to wait before reconnecting. */
+  public static byte[] restart(int delayMillis) {
+    ByteBuffer data = ByteBuffer.allocate(4).putInt(delayMillis);
+    return toByte(MessageId.RESTART, data.array());
+  }
+
   public static byte[] password(String pass) {
     return toByte(MessageId.ADD_PASSWORD, pass.getBytes(StandardCharsets.UTF_8));
   }
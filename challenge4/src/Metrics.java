@@ -0,0 +1,177 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts what the server is doing so it can be watched under load without printing every message.
+ * It counts connections, frames and bytes in each direction per {@link MessageId}, the frames
+ * dropped instead of being queued for a client, how long each message took from being added to the
+ * state to being queued for every client that receives it, how long the state's lock is held for
+ * each message, and how much big messages shrink when compressed and how long compressing each of
+ * them takes. Queue depths are read from every
+ * connected session whenever the metrics are asked for, along with how many connections and
+ * messages the {@link Admission} rejected.
+ *
+ * <p>Setting chat.metrics.port serves the metrics as plain text over HTTP on localhost, for example
+ * with {@code curl localhost:9001/metrics}. Latencies are in microseconds.
+ */
+public class Metrics {
+  private static final Metrics shared = new Metrics();
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+  final Histogram deliveryLatency = new Histogram();
+  final Histogram lockHold = new Histogram();
+  private final Histogram compressTime = new Histogram();
+  private final LongAdder compressedIn = new LongAdder();
+  private final LongAdder compressedOut = new LongAdder();
+  private final LongAdder connections = new LongAdder();
+  private final LongAdder bytesIn = new LongAdder();
+  private final LongAdder bytesOut = new LongAdder();
+  private final LongAdder[] framesIn = adders();
+  private final LongAdder[] framesOut = adders();
+  private final LongAdder[] framesDropped = adders();
+  private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+
+  public static Metrics shared() {
+    return shared;
+  }
+
+  /** Starts serving the metrics if chat.metrics.port is set. */
+  public void start() throws IOException {
+    Integer port = Integer.getInteger("chat.metrics.port");
+    if (port == null) {
+      return;
+    }
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(
+        "/",
+        exchange -> {
+          byte[] body = report().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+          exchange.sendResponseHeaders(200, body.length);
+          try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+          }
+        });
+    server.start();
+    System.out.println("Serving metrics on http://localhost:" + port + "/metrics");
+  }
+
+  void opened(Session session) {
+    connections.increment();
+    sessions.add(session);
+  }
+
+  void closed(Session session) {
+    sessions.remove(session);
+  }
+
+  void received(MessageId id, int bytes) {
+    framesIn[id.ordinal()].increment();
+    bytesIn.add(bytes);
+  }
+
+  void sent(MessageId id, int bytes) {
+    framesOut[id.ordinal()].increment();
+    bytesOut.add(bytes);
+  }
+
+  /** Counts a frame that was never queued for its client, so was not sent. */
+  void dropped(MessageId id) {
+    framesDropped[id.ordinal()].increment();
+  }
+
+  /**
+   * @param in The size of the frame before compressing it.
+   * @param out The size of the compressed frame, or the original size if it did not get smaller.
+   */
+  void compressed(int in, int out, long nanos) {
+    compressedIn.add(in);
+    compressedOut.add(out);
+    compressTime.record(nanos);
+  }
+
+  /** @return Every metric on its own line as its name followed by its value. */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    line(report, "connections_total", connections.sum());
+    line(report, "connections_open", sessions.size());
+    long depth = 0;
+    long maxDepth = 0;
+    long queuedBytes = 0;
+    long dropped = 0;
+    for (Session session : sessions) {
+      int sessionDepth = session.outbound.depth();
+      depth += sessionDepth;
+      maxDepth = Math.max(maxDepth, sessionDepth);
+      queuedBytes += session.outbound.queuedBytes();
+      dropped += session.outbound.dropped();
+    }
+    line(report, "queue_depth_total", depth);
+    line(report, "queue_depth_max", maxDepth);
+    line(report, "queue_bytes_total", queuedBytes);
+    line(report, "queue_dropped_open_connections", dropped);
+    line(report, "queue_dropped_over_total", OutboundQueue.totalDropped());
+    Admission admission = Admission.shared();
+    line(report, "connections_rejected", admission.rejectedConnections());
+    line(report, "messages_rate_limited{by=\"connection\"}", admission.limitedByConnection());
+    line(report, "messages_rate_limited{by=\"user\"}", admission.limitedByUser());
+    line(report, "bytes_in", bytesIn.sum());
+    line(report, "bytes_out", bytesOut.sum());
+    for (MessageId id : MessageId.values) {
+      long in = framesIn[id.ordinal()].sum();
+      long out = framesOut[id.ordinal()].sum();
+      long droppedOut = framesDropped[id.ordinal()].sum();
+      if (in > 0 || out > 0 || droppedOut > 0) {
+        line(report, "frames_in{id=\"" + id + "\"}", in);
+        line(report, "frames_out{id=\"" + id + "\"}", out);
+        line(report, "frames_dropped{id=\"" + id + "\"}", droppedOut);
+      }
+    }
+    histogram(report, "delivery_latency_micros", deliveryLatency);
+    histogram(report, "state_lock_hold_micros", lockHold);
+    long uncompressed = compressedIn.sum();
+    long compressed = compressedOut.sum();
+    line(report, "compression_bytes_in", uncompressed);
+    line(report, "compression_bytes_out", compressed);
+    double ratio = uncompressed == 0 ? 1 : compressed / (double) uncompressed;
+    report.append("compression_ratio ").append(String.format("%.3f", ratio)).append('\n');
+    histogram(report, "compress_micros", compressTime);
+    line(report, "events_dropped", EventLog.dropped());
+    return report.toString();
+  }
+
+  private static void histogram(StringBuilder report, String name, Histogram histogram) {
+    line(report, name + "_count", histogram.count());
+    report.append(name).append("_mean ").append(micros((long) histogram.mean())).append('\n');
+    for (double percentile : PERCENTILES) {
+      report.append(name).append("{p=\"").append(percentile).append("\"} ");
+      report.append(micros(histogram.percentile(percentile))).append('\n');
+    }
+    report.append(name).append("_max ").append(micros(histogram.max())).append('\n');
+  }
+
+  private static void line(StringBuilder report, String name, long value) {
+    report.append(name).append(' ').append(value).append('\n');
+  }
+
+  private static String micros(long nanos) {
+    return String.format("%.3f", nanos / (double) TimeUnit.MICROSECONDS.toNanos(1));
+  }
+
+  private static LongAdder[] adders() {
+    LongAdder[] adders = new LongAdder[MessageId.values.length];
+    for (int i = 0; i < adders.length; i++) {
+      adders[i] = new LongAdder();
+    }
+    return adders;
+  }
+}
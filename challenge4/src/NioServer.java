@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single threaded server that uses a selector to serve every client instead of giving each one
+ * its own thread. It speaks exactly the same protocol as {@link Server} so the same clients can
+ * connect to either of them.
+ *
+ * <p>Frames sent during one pass over the selected keys are only queued, and every connection
+ * that had something queued is flushed once at the end of the pass so that they go out together.
+ * Only the connections whose rooms have new messages are delivered to, unless someone joined or
+ * left which everyone is told about.
+ */
+public class NioServer {
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final State state;
+  private final String salt;
+  private final Set<Connection> connections = new LinkedHashSet<>();
+  // Connections with queued frames that have not been handed to the socket yet.
+  private final Set<Connection> dirty = new LinkedHashSet<>();
+  // Connections that other threads, such as the cluster, queued frames for.
+  private final Queue<Connection> dirtied = new ConcurrentLinkedQueue<>();
+  // Connections with new messages in one of their rooms, and those another thread found.
+  private final Set<Connection> ready = new LinkedHashSet<>();
+  private final Queue<Connection> readied = new ConcurrentLinkedQueue<>();
+  private volatile Thread selectorThread;
+  // Only ever used by the selector thread so can be shared between all connections.
+  final Frame[] batch = new Frame[Connection.MAX_GATHER];
+  // A connection never has more than a batch in flight, so this is always big enough.
+  final ByteBuffer[] gather = new ByteBuffer[Connection.MAX_GATHER];
+  private long presenceDelivered = 0;
+
+  public NioServer(int port, String salt) throws IOException {
+    this(port, salt, new State());
+  }
+
+  public NioServer(int port, String salt, State state) throws IOException {
+    this.salt = salt;
+    this.state = state;
+    selector = Selector.open();
+    server = ServerSocketChannel.open();
+    server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    server.bind(new InetSocketAddress(port), Admission.BACKLOG);
+    server.configureBlocking(false);
+    server.register(selector, SelectionKey.OP_ACCEPT);
+    // Users of other nodes in the cluster join and leave on other threads which have to wake us up.
+    state.addMessageListener(
+        () -> {
+          if (Thread.currentThread() != selectorThread) {
+            selector.wakeup();
+          }
+        });
+  }
+
+  public static void main(String[] args) {
+    try {
+      Checkpoint checkpoint = Checkpoint.take();
+      String salt = Server.salt(checkpoint);
+      State state = new State();
+      state.restore(checkpoint);
+      NioServer server = new NioServer(Server.PORT, salt, state);
+      Checkpoint.drainOnExit(state, salt);
+      Cluster cluster = Cluster.fromProperties(state);
+      if (cluster != null) {
+        cluster.start();
+      }
+      Metrics.shared().start();
+      server.run();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void run() throws IOException {
+    selectorThread = Thread.currentThread();
+    long timeout = 0;
+    while (true) {
+      if (timeout > 0) {
+        selector.select(timeout);
+      } else {
+        selector.select();
+      }
+      Connection queued;
+      while ((queued = dirtied.poll()) != null) {
+        if (connections.contains(queued)) {
+          dirty.add(queued);
+        }
+      }
+      while ((queued = readied.poll()) != null) {
+        if (connections.contains(queued)) {
+          ready.add(queued);
+        }
+      }
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+          if (key.isReadable() && !connection.read()) {
+            close(connection);
+            continue;
+          }
+          if (key.isValid() && key.isWritable()) {
+            dirty.add(connection);
+          }
+        } catch (IOException | ClassNotFoundException e) {
+          System.err.println("Got error: " + e.getMessage());
+          close(connection);
+        }
+      }
+      // Everyone is told when someone joins or leaves.
+      if (state.presence.version() != presenceDelivered) {
+        presenceDelivered = state.presence.version();
+        ready.addAll(connections);
+      }
+      if (!ready.isEmpty()) {
+        List<Connection> delivering = new ArrayList<>(ready);
+        ready.clear();
+        for (Connection connection : delivering) {
+          try {
+            connection.session.deliver();
+          } catch (IOException e) {
+            System.err.println("Got error: " + e.getMessage());
+            close(connection);
+          }
+        }
+      }
+      timeout = flushDirty();
+    }
+  }
+
+  void markReady(Connection connection) {
+    if (Thread.currentThread() == selectorThread) {
+      ready.add(connection);
+    } else {
+      readied.add(connection);
+      selector.wakeup();
+    }
+  }
+
+  void markDirty(Connection connection) {
+    if (Thread.currentThread() == selectorThread) {
+      dirty.add(connection);
+    } else {
+      dirtied.add(connection);
+      selector.wakeup();
+    }
+  }
+
+  /**
+   * Flushes every connection that has something to write. Connections that are lingering to fill
+   * up a batch stay dirty.
+   *
+   * @return How many milliseconds to wait before flushing again, or 0 to only flush on the next
+   *     event.
+   */
+  private long flushDirty() {
+    long linger = Long.MAX_VALUE;
+    Iterator<Connection> iterator = dirty.iterator();
+    List<Connection> failed = new ArrayList<>();
+    while (iterator.hasNext()) {
+      Connection connection = iterator.next();
+      try {
+        long wait = connection.flush();
+        if (wait > 0) {
+          linger = Math.min(linger, wait);
+          continue;
+        }
+      } catch (IOException e) {
+        System.err.println("Got error: " + e.getMessage());
+        failed.add(connection);
+      }
+      iterator.remove();
+    }
+    for (Connection connection : failed) {
+      close(connection);
+    }
+    return linger == Long.MAX_VALUE ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(linger));
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel;
+    while ((channel = server.accept()) != null) {
+      if (!Admission.shared().admit()) {
+        channel.close();
+        continue;
+      }
+      channel.configureBlocking(false);
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      Connection connection =
+          new Connection(this, channel, key, state.nextConnectionId(), state, salt);
+      key.attach(connection);
+      connections.add(connection);
+      connection.session.start();
+    }
+  }
+
+  private void close(Connection connection) {
+    dirty.remove(connection);
+    ready.remove(connection);
+    if (connections.remove(connection)) {
+      connection.close();
+    }
+  }
+}
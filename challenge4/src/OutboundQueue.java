@@ -0,0 +1,181 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Frames waiting to be written to a single client. Rather than writing every frame on its own,
+ * whoever writes to the client takes everything that has queued up, up to a batch size, and writes
+ * it in one go. It can also linger for a short while to let a batch fill up.
+ *
+ * <p>The queue is bounded so a slow client can never hold up whoever is sending to it. Once it is
+ * full new frames are either dropped or the client is disconnected, depending on the policy. The
+ * same happens to clients with more than a batch waiting once every queue together holds more than
+ * chat.queue.totalBytes, so slow clients can't use up the server's memory between them while
+ * clients that keep up are unaffected. The limits can be changed with the chat.batch.bytes,
+ * chat.batch.latencyMicros, chat.queue.bytes, chat.queue.totalBytes and chat.queue.policy system
+ * properties.
+ */
+public class OutboundQueue {
+  public enum Policy {
+    DROP,
+    DISCONNECT
+  }
+
+  /** What became of an offered frame. */
+  public enum Offer {
+    QUEUED,
+    // Because the queue is full or closed.
+    DROPPED,
+    // Because the queue is full, the client should be disconnected.
+    REFUSED
+  }
+
+  static final int MAX_BATCH_BYTES = Integer.getInteger("chat.batch.bytes", 64 * 1024);
+  static final long MAX_LATENCY_NANOS =
+      TimeUnit.MICROSECONDS.toNanos(Long.getLong("chat.batch.latencyMicros", 0));
+  static final long MAX_QUEUED_BYTES = Long.getLong("chat.queue.bytes", 4 * 1024 * 1024);
+  static final long MAX_TOTAL_QUEUED_BYTES =
+      Long.getLong("chat.queue.totalBytes", 256 * 1024 * 1024);
+  static final Policy POLICY = Policy.valueOf(System.getProperty("chat.queue.policy", "DROP"));
+
+  // Across every queue, so that the slowest clients can be cut off when memory runs short.
+  private static final AtomicLong totalQueuedBytes = new AtomicLong();
+  private static final LongAdder totalDropped = new LongAdder();
+
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  private long queuedBytes = 0;
+  private long oldestNanos = 0;
+  private long dropped = 0;
+  private boolean woken = false;
+  private boolean closed = false;
+
+  /**
+   * Queues a frame, taking over the caller's reference to it.
+   *
+   * @return Whether the frame was queued, or if not whether the client should be disconnected.
+   */
+  public synchronized Offer offer(Frame frame) {
+    if (closed) {
+      frame.release();
+      return Offer.DROPPED;
+    }
+    if (queuedBytes + frame.size() > MAX_QUEUED_BYTES) {
+      frame.release();
+      dropped += 1;
+      return full();
+    }
+    if (queuedBytes >= MAX_BATCH_BYTES
+        && totalQueuedBytes.get() + frame.size() > MAX_TOTAL_QUEUED_BYTES) {
+      frame.release();
+      dropped += 1;
+      totalDropped.increment();
+      return full();
+    }
+    if (frames.isEmpty()) {
+      oldestNanos = System.nanoTime();
+    }
+    frames.add(frame);
+    queuedBytes += frame.size();
+    totalQueuedBytes.addAndGet(frame.size());
+    notifyAll();
+    return Offer.QUEUED;
+  }
+
+  private static Offer full() {
+    return POLICY == Policy.DROP ? Offer.DROPPED : Offer.REFUSED;
+  }
+
+  /**
+   * Takes the next batch of frames, which is as many as fit in the batch size but always at least
+   * one. The caller becomes responsible for releasing them.
+   *
+   * @return How many frames were put into the batch.
+   */
+  public synchronized int poll(Frame[] batch) {
+    int count = 0;
+    int bytes = 0;
+    while (count < batch.length && !frames.isEmpty()) {
+      Frame frame = frames.peek();
+      if (count > 0 && bytes + frame.size() > MAX_BATCH_BYTES) {
+        break;
+      }
+      batch[count] = frames.poll();
+      bytes += frame.size();
+      queuedBytes -= frame.size();
+      count += 1;
+    }
+    totalQueuedBytes.addAndGet(-bytes);
+    oldestNanos = System.nanoTime();
+    return count;
+  }
+
+  /**
+   * @return 0 if a batch should be written now, how many nanoseconds to wait for the batch to fill
+   *     up otherwise, or -1 if there is nothing to write.
+   */
+  public synchronized long lingerNanos(long now) {
+    if (frames.isEmpty()) {
+      return -1;
+    }
+    if (queuedBytes >= MAX_BATCH_BYTES) {
+      return 0;
+    }
+    return Math.max(0, oldestNanos + MAX_LATENCY_NANOS - now);
+  }
+
+  /**
+   * Blocks until there is a batch ready to be written or someone called {@link #wake()}.
+   *
+   * @return false once the queue has been closed.
+   */
+  public synchronized boolean await() throws InterruptedException {
+    while (!closed && !woken) {
+      long linger = lingerNanos(System.nanoTime());
+      if (linger == 0) {
+        break;
+      }
+      if (linger < 0) {
+        wait();
+      } else {
+        TimeUnit.NANOSECONDS.timedWait(this, linger);
+      }
+    }
+    woken = false;
+    return !closed;
+  }
+
+  public synchronized void wake() {
+    woken = true;
+    notifyAll();
+  }
+
+  public synchronized void close() {
+    closed = true;
+    while (!frames.isEmpty()) {
+      frames.poll().release();
+    }
+    totalQueuedBytes.addAndGet(-queuedBytes);
+    queuedBytes = 0;
+    notifyAll();
+  }
+
+  /** @return How many frames are waiting to be written. */
+  public synchronized int depth() {
+    return frames.size();
+  }
+
+  public synchronized long queuedBytes() {
+    return queuedBytes;
+  }
+
+  /** @return How many frames every queue dropped because all of them together were full. */
+  static long totalDropped() {
+    return totalDropped.sum();
+  }
+
+  /** @return How many frames were dropped because the queue was full. */
+  public synchronized long dropped() {
+    return dropped;
+  }
+}
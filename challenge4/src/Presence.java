@@ -0,0 +1,142 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Who is connected, together with a version that goes up every time someone joins or leaves. Each
+ * change keeps the ADD_USER or REMOVE_USER frame for it, which is shared by every client that is
+ * sent it. Rather than being told about every change, each client catches up from the version it
+ * last saw whenever it is next delivered to.
+ *
+ * <p>A client that has fallen more than chat.presence.coalesce changes behind, for example during
+ * a storm of joins, is sent the whole user list instead. The user list is encoded at most once per
+ * version and codec and then shared as well. Only the last chat.presence.deltas changes are kept.
+ */
+public class Presence {
+  static final int MAX_DELTAS = Integer.getInteger("chat.presence.deltas", 1024);
+  static final int COALESCE = Integer.getInteger("chat.presence.coalesce", 32);
+
+  private final HashMap<Integer, String> users = new HashMap<>();
+  // The frame of every change, the last one being the change to the current version.
+  private final ArrayDeque<Frame> deltas = new ArrayDeque<>();
+  private long version = 0;
+  private long snapshotVersion = -1;
+  private Frame binarySnapshot;
+  private Frame serializedSnapshot;
+
+  /** @return The current version, which only changes when someone joins or leaves. */
+  public synchronized long version() {
+    return version;
+  }
+
+  public synchronized HashMap<Integer, String> users() {
+    return new HashMap<>(users);
+  }
+
+  public synchronized boolean add(int id, String username) {
+    if (username.equals(users.put(id, username))) {
+      return false;
+    }
+    change(Frame.wrap(MessageToByte.addUser(id, username)));
+    return true;
+  }
+
+  public synchronized boolean remove(int id) {
+    if (users.remove(id) == null) {
+      return false;
+    }
+    change(Frame.wrap(MessageToByte.removeUser(id)));
+    return true;
+  }
+
+  /** Removes everyone whose id matches, as a single batch of changes. */
+  public synchronized boolean removeIf(IntPredicate matches) {
+    boolean removed = false;
+    for (int id : users().keySet()) {
+      if (matches.test(id)) {
+        removed |= remove(id);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * Adds the whole user list to the frames, with an extra reference that the caller has to
+   * release.
+   *
+   * @return The version of the user list.
+   */
+  public synchronized long snapshot(boolean binary, List<Frame> frames) throws IOException {
+    if (snapshotVersion != version) {
+      releaseSnapshot();
+      snapshotVersion = version;
+    }
+    Frame snapshot;
+    if (binary) {
+      if (binarySnapshot == null) {
+        ByteBuffer frame = BufferPool.acquire(BinaryCodec.userListSize(users));
+        BinaryCodec.putUserList(frame, users);
+        frame.flip();
+        binarySnapshot = Frame.pooled(frame);
+      }
+      snapshot = binarySnapshot;
+    } else {
+      if (serializedSnapshot == null) {
+        serializedSnapshot = Frame.wrap(MessageToByte.listUser(users));
+      }
+      snapshot = serializedSnapshot;
+    }
+    snapshot.retain();
+    frames.add(snapshot);
+    return version;
+  }
+
+  /**
+   * Adds the frames a client that has seen everything up to a version needs to catch up, with an
+   * extra reference that the caller has to release.
+   *
+   * @return The version the client will have caught up to.
+   */
+  public synchronized long catchUp(long since, boolean binary, List<Frame> frames)
+      throws IOException {
+    long behind = version - since;
+    if (behind <= 0) {
+      return since;
+    }
+    if (behind > COALESCE || behind > deltas.size()) {
+      return snapshot(binary, frames);
+    }
+    long skip = deltas.size() - behind;
+    for (Frame delta : deltas) {
+      if (skip > 0) {
+        skip -= 1;
+        continue;
+      }
+      delta.retain();
+      frames.add(delta);
+    }
+    return version;
+  }
+
+  private void change(Frame delta) {
+    version += 1;
+    deltas.add(delta);
+    if (deltas.size() > MAX_DELTAS) {
+      deltas.poll().release();
+    }
+  }
+
+  private void releaseSnapshot() {
+    if (binarySnapshot != null) {
+      binarySnapshot.release();
+      binarySnapshot = null;
+    }
+    if (serializedSnapshot != null) {
+      serializedSnapshot.release();
+      serializedSnapshot = null;
+    }
+  }
+}
@@ -0,0 +1,139 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named room that clients subscribe to so that they only receive the messages sent to it. Every
+ * room has its own {@link BroadcastLog} and its own members, so publishing to one room never takes
+ * a lock or touches a client of any other room and clients in quiet rooms cost nothing however
+ * busy the rest of the server is. Only the members of a room are woken up when it has a new
+ * message.
+ *
+ * <p>Every client is in the lobby, which has the empty name. Each password is a room too, named
+ * after its hash, so encrypted messages only ever reach the clients that registered the password.
+ * Names chosen by clients can't start with '$' like a hash does so they never clash.
+ */
+public class Room {
+  static final String LOBBY = "";
+  static final int CAPACITY = Integer.getInteger("chat.room.capacity", 256);
+  static final int MAX_NAME_BYTES = 64;
+  // The 31 characters that a BCrypt hash adds to its salt.
+  private static final int HASH_CHARS = 31;
+
+  final String name;
+  private final BroadcastLog<EncodedMessage> messages;
+  private final ConcurrentHashMap<Integer, Member> members = new ConcurrentHashMap<>();
+  // Set once the last member has left and the room has been removed.
+  private volatile boolean closed = false;
+
+  public Room(String name, int capacity) {
+    this.name = name;
+    messages = new BroadcastLog<>(capacity, EncodedMessage::release);
+  }
+
+  /** @return The name of the room a message is sent to. */
+  public static String of(Message message) {
+    if (message.passwordHash != null) {
+      return message.passwordHash;
+    }
+    return message.room != null ? message.room : LOBBY;
+  }
+
+  /** @return Whether a client can choose the name for a room. */
+  public static boolean isValidName(String name) {
+    return !name.isEmpty()
+        && name.charAt(0) != '$'
+        && name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_BYTES;
+  }
+
+  /**
+   * @return Whether the name is a BCrypt hash made with the server's salt, which is the only kind
+   *     of name a password room can have.
+   */
+  public static boolean isPasswordHash(String name, String salt) {
+    if (name.length() != salt.length() + HASH_CHARS || !name.startsWith(salt)) {
+      return false;
+    }
+    for (int i = salt.length(); i < name.length(); i++) {
+      char c = name.charAt(i);
+      boolean letter = c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z';
+      if (!letter && !(c >= '0' && c <= '9') && c != '.' && c != '/') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** The session receives every message published from now on. */
+  void join(Session session) {
+    members.computeIfAbsent(session.connectionId, id -> new Member(session, messages.subscribe()));
+  }
+
+  void leave(int connectionId) {
+    Member member = members.remove(connectionId);
+    if (member != null) {
+      messages.unsubscribe(member.cursor);
+    }
+  }
+
+  boolean isEmpty() {
+    return members.isEmpty();
+  }
+
+  /** @return Whether anyone other than the user would receive a message sent to the room. */
+  boolean hasOtherMembers(int user) {
+    return members.size() > 1 || (members.size() == 1 && !members.containsKey(user));
+  }
+
+  /** Publishes the message, which is released once the log overwrites it. */
+  void publish(EncodedMessage message) {
+    publish(messages.claim(), message);
+  }
+
+  /** Reserves the position of the next message, see {@link BroadcastLog#claim()}. */
+  long claim() {
+    return messages.claim();
+  }
+
+  void publish(long sequence, EncodedMessage message) {
+    messages.publish(sequence, message);
+    if (closed) {
+      // Published by someone who found the room just before it was removed.
+      messages.clear();
+    }
+  }
+
+  /** Releases every message still in the log once the room has been removed. */
+  void close() {
+    closed = true;
+    messages.clear();
+  }
+
+  /** Lets every member other than the sender know there is something new to deliver. */
+  void wake(int sender) {
+    for (Member member : members.values()) {
+      if (member.session.connectionId != sender) {
+        member.session.messagesAvailable();
+      }
+    }
+  }
+
+  /**
+   * Reads as many of the member's messages as fit into the batch.
+   *
+   * @return How many messages were put at the start of the batch.
+   */
+  int drain(int connectionId, EncodedMessage[] batch) {
+    Member member = members.get(connectionId);
+    return member == null ? 0 : messages.drain(member.cursor, batch);
+  }
+
+  private static final class Member {
+    final Session session;
+    final BroadcastLog.Cursor cursor;
+
+    Member(Session session, BroadcastLog.Cursor cursor) {
+      this.session = session;
+      this.cursor = cursor;
+    }
+  }
+}
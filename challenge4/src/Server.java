@@ -1,22 +1,73 @@
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Server {
+  static final int PORT = Integer.getInteger("chat.port", 3001);
+
+  /**
+   * @param args Pass "blocking" to serve every client with a blocking reader and writer on virtual
+   *     threads (when the JVM has them) instead of a polling platform thread.
+   */
   public static void main(String[] args) {
-    String salt = BCrypt.gensalt(14);
-    try (ServerSocket server = new ServerSocket(3001)) {
+    boolean blocking = args.length > 0 && args[0].equals("blocking");
+    Checkpoint checkpoint = Checkpoint.take();
+    String salt = salt(checkpoint);
+    try (ServerSocket server = new ServerSocket(PORT, Admission.BACKLOG)) {
       server.setReuseAddress(true);
       State state = new State();
-      int connectionCount = 0;
+      state.restore(checkpoint);
+      Checkpoint.drainOnExit(state, salt);
+      Cluster cluster = Cluster.fromProperties(state);
+      if (cluster != null) {
+        cluster.start();
+      }
+      Metrics.shared().start();
+      ExecutorService executor = blocking ? handlerExecutor() : null;
       while (true) {
         Socket client = server.accept();
-        ClientHandler handler = new ClientHandler(client, connectionCount, state, salt);
-        connectionCount += 1;
-        new Thread(handler).start();
+        if (!Admission.shared().admit()) {
+          client.close();
+          continue;
+        }
+        int id = state.nextConnectionId();
+        if (blocking) {
+          client.setTcpNoDelay(true);
+          executor.execute(new ClientHandler(client, id, state, salt, executor));
+        } else {
+          new Thread(new ClientHandler(client, id, state, salt)).start();
+        }
       }
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
+
+  /**
+   * @return The salt given with chat.salt, which every node of a cluster has to share so that
+   *     their clients agree on the hash of each password, or a new one.
+   */
+  static String salt() {
+    return System.getProperty("chat.salt", BCrypt.gensalt(14));
+  }
+
+  /** @return The salt of the run being resumed, so clients' password hashes stay the same. */
+  static String salt(Checkpoint checkpoint) {
+    if (checkpoint == null || System.getProperty("chat.salt") != null) {
+      return salt();
+    }
+    return checkpoint.salt;
+  }
+
+  /** Uses a virtual thread per task on Java 21 and later and falls back to platform threads. */
+  static ExecutorService handlerExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
 }
@@ -0,0 +1,371 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Session holds everything the server knows about a single client and implements the chat
+ * protocol on top of it. It does not care how the bytes reach the client, which lets both the
+ * threaded and the selector based servers share it.
+ */
+public class Session {
+  private static final int BATCH_SIZE = 64;
+  private static final long PENDING = -2;
+  private static final long SNAPSHOT = -1;
+
+  // Replaced by the id of the session being resumed before the client registers.
+  int connectionId;
+  final State state;
+  final String salt;
+  final Transport transport;
+  final OutboundQueue outbound = new OutboundQueue();
+  private final Metrics metrics = Metrics.shared();
+  private final Admission admission = Admission.shared();
+  private final TokenBucket connectionLimit = admission.connectionLimit();
+  // Shared by every connection with the same username, set once the client has joined.
+  private TokenBucket userLimit;
+  // Whether the last message was over the limit, so the limit is only logged once per burst.
+  private boolean limited = false;
+  String username;
+  // Whether the client asked for the BinaryCodec instead of Java serialization.
+  boolean binary = false;
+  // Whether the client can inflate big frames, which is only supported with the BinaryCodec.
+  boolean compressed = false;
+  // Whether the client can open sealed messages, which is only supported with the BinaryCodec.
+  boolean sealed = false;
+  // The token the client can resume this session with after a restart, if it supports that.
+  private String resumeToken;
+  private boolean resumable = false;
+  // The sequence number of the first message in the history this client has not been sent yet.
+  private volatile long cursor;
+  // Messages from here on are delivered live, anything before has to be replayed from history.
+  long joinedAt;
+  // Where the user list starts from once the client has registered, either SNAPSHOT or the version
+  // it already has. It is handed from the thread that registers the client to the one delivering
+  // to it, which is the only one that ever touches presenceVersion and presenceFrames.
+  private volatile long presenceStart = PENDING;
+  private boolean presenceStarted = false;
+  // The version of the user list this client has been sent.
+  private long presenceVersion;
+  private final List<Frame> presenceFrames = new ArrayList<>();
+  private boolean closed = false;
+  // The rooms this client is in, including the lobby and the room of every password it registered.
+  final Map<String, Room> rooms = new ConcurrentHashMap<>();
+  // Set once one of the rooms has woken the transport up, until the next delivery.
+  private final AtomicBoolean messagesAvailable = new AtomicBoolean(false);
+  // Reused by every delivery, which only ever happens on one thread at a time.
+  private final EncodedMessage[] batch = new EncodedMessage[BATCH_SIZE];
+
+  public Session(int connectionId, State state, String salt, Transport transport) {
+    this.connectionId = connectionId;
+    this.state = state;
+    this.salt = salt;
+    this.transport = transport;
+    metrics.opened(this);
+  }
+
+  public void start() {
+    send(MessageToByte.salt(salt));
+  }
+
+  /** @return Whether anything is waiting to be written to the client. */
+  boolean isSending() {
+    return outbound.depth() > 0;
+  }
+
+  public boolean isRegistered() {
+    return username != null;
+  }
+
+  /**
+   * Handles a frame from the client, whose payload is between the position and limit of the data.
+   * The data is only valid until this returns.
+   */
+  public void onFrame(MessageId id, ByteBuffer data) throws IOException, ClassNotFoundException {
+    metrics.received(id, data.remaining() + 5);
+    if (!isRegistered()) {
+      if (id == MessageId.CODEC) {
+        binary = data.hasRemaining() && data.get(data.position()) == BinaryCodec.VERSION;
+        byte features = binary && data.remaining() > 1 ? data.get(data.position() + 1) : 0;
+        compressed = (features & Compression.FEATURE) != 0;
+        resumable = (features & Checkpoint.FEATURE) != 0;
+        sealed = (features & MessageCipher.FEATURE) != 0;
+        return;
+      }
+      if (id == MessageId.RESUME) {
+        Checkpoint.Entry entry = resumable ? state.resume(ByteToMessage.string(data)) : null;
+        if (entry == null) {
+          // The client has to join from scratch with INIT instead.
+          send(MessageToByte.resume(""));
+          return;
+        }
+        connectionId = entry.id;
+        username = entry.username;
+        register();
+        EventLog.log(EventLog.Event.RECONNECTED, connectionId, username);
+        for (String room : entry.rooms) {
+          join(room);
+        }
+        // Catches up with whoever joined or left since the restart on the next delivery.
+        presenceStart = state.resumedVersion();
+        replay(MessageToByte.HISTORY_SINCE, entry.cursor);
+        messagesAvailable();
+        return;
+      }
+      if (id != MessageId.INIT) {
+        System.err.println("Received incorrect initial packet.");
+      }
+      String name = ByteToMessage.string(data);
+      if (!BinaryCodec.fitsShort(name)) {
+        // It could never be written in the binary user list.
+        System.err.println("Refused a username that is too long.");
+        transport.disconnect();
+        return;
+      }
+      username = name;
+      register();
+      EventLog.log(EventLog.Event.CONNECTED, connectionId, username);
+      // The whole user list is sent on the next delivery.
+      presenceStart = SNAPSHOT;
+      messagesAvailable();
+      return;
+    }
+    if ((id == MessageId.MESSAGE || id == MessageId.MESSAGE_RECEIVED) && !allowed()) {
+      return;
+    }
+    switch (id) {
+      case MESSAGE:
+        Message message = new Message(connectionId, ByteToMessage.string(data));
+        EventLog.log(EventLog.Event.MESSAGE, connectionId, username, null, message.message);
+        state.addMessage(message);
+        break;
+      case MESSAGE_RECEIVED:
+        Message received =
+            binary ? BinaryCodec.getMessage(data) : ByteToMessage.receivedMessage(data);
+        received.user = connectionId;
+        if (received.sealed != null && received.passwordHash == null) {
+          // Nobody could ever open it, and it would be stored in the history for good.
+          System.err.println(username + " sent a sealed message without a password.");
+          break;
+        } else if (received.passwordHash != null
+            && !Room.isPasswordHash(received.passwordHash, salt)) {
+          // Anything longer than a hash could overflow its length in the history and relays.
+          System.err.println(username + " sent a message with a password that is not a hash.");
+          break;
+        } else if (received.passwordHash != null) {
+          EventLog.log(
+              EventLog.Event.ENCRYPTED, connectionId, username, null, received.message);
+        } else if (received.room == null || rooms.containsKey(received.room)) {
+          EventLog.log(
+              EventLog.Event.MESSAGE, connectionId, username, received.room, received.message);
+        } else {
+          System.err.println(username + " sent a message to a room they are not in.");
+          break;
+        }
+        state.addMessage(received);
+        break;
+      case ADD_PASSWORD:
+        String hash = ByteToMessage.string(data);
+        if (!Room.isPasswordHash(hash, salt)) {
+          System.err.println(username + " tried to add a password that is not a hash.");
+          break;
+        }
+        join(hash);
+        break;
+      case SUBSCRIBE:
+        boolean subscribe = data.get() != 0;
+        String room = ByteToMessage.string(data);
+        if (!Room.isValidName(room)) {
+          System.err.println(username + " tried to use an invalid room name.");
+        } else if (subscribe) {
+          join(room);
+        } else if (rooms.remove(room) != null) {
+          state.leave(room, connectionId);
+        }
+        break;
+      case HISTORY:
+        replay(data.get(), data.getLong());
+        break;
+    }
+  }
+
+  /**
+   * Sends the stored messages that were asked for straight from the history and then a HISTORY
+   * frame with the sequence number to ask from next time. A client has seen all of the history
+   * once asking again sends no messages. The history is stored with the BinaryCodec so clients
+   * using serialization cannot ask for it.
+   */
+  private void replay(byte kind, long value) {
+    if (!binary) {
+      return;
+    }
+    long from = kind == MessageToByte.HISTORY_LAST ? joinedAt - value : value;
+    // Only replay as much as comfortably fits in the queue, the client can ask for the rest.
+    long budget = OutboundQueue.MAX_QUEUED_BYTES / 2 - outbound.queuedBytes();
+    long next = state.history.replay(from, joinedAt, budget, this::canRead, this::send);
+    send(MessageToByte.history(MessageToByte.HISTORY_SINCE, next));
+  }
+
+  /** Registers the client, giving it a resume token if it supports them. */
+  private void register() {
+    userLimit = admission.join(username);
+    joinedAt = state.registerNewUser(this);
+    cursor = joinedAt;
+    rooms.put(Room.LOBBY, state.lobby());
+    if (resumable) {
+      resumeToken = Checkpoint.newToken();
+      send(MessageToByte.resume(resumeToken));
+    }
+  }
+
+  /**
+   * Tells the client the server is restarting and how long to wait before resuming.
+   *
+   * @return false if the client can't resume.
+   */
+  boolean restart(int delayMillis) {
+    if (resumeToken == null) {
+      return false;
+    }
+    send(MessageToByte.restart(delayMillis));
+    return true;
+  }
+
+  /** @return The session as it is now, for the checkpoint. */
+  Checkpoint.Entry checkpoint() {
+    List<String> joined = new ArrayList<>(rooms.keySet());
+    joined.remove(Room.LOBBY);
+    return new Checkpoint.Entry(resumeToken, connectionId, username, cursor, joined);
+  }
+
+  /** @return Whether the client can send another message without going over its rate limits. */
+  private boolean allowed() {
+    boolean allowed = admission.allow(connectionLimit, userLimit);
+    if (!allowed && !limited) {
+      System.err.println(username + " is sending too fast, dropping their messages.");
+    }
+    limited = !allowed;
+    return allowed;
+  }
+
+  /**
+   * @return Whether a stored message was sent to one of our rooms or passwords, in a way the
+   *     client understands.
+   */
+  private boolean canRead(ByteBuffer frame) {
+    return rooms.containsKey(BinaryCodec.messageRoom(frame))
+        && (sealed || !BinaryCodec.isSealed(frame));
+  }
+
+  private void join(String room) {
+    if (!rooms.containsKey(room)) {
+      rooms.put(room, state.join(room, this));
+    }
+  }
+
+  /** Called by a room with a new message, waking up the transport unless it already has been. */
+  void messagesAvailable() {
+    if (messagesAvailable.compareAndSet(false, true)) {
+      transport.onMessagesAvailable();
+    }
+  }
+
+  /**
+   * Sends whoever joined or left and then every message in the state this client has not seen
+   * yet.
+   */
+  public void deliver() throws IOException {
+    if (!isRegistered()) {
+      return;
+    }
+    // Cleared first so that a message published from here on wakes the transport up again.
+    messagesAvailable.set(false);
+    if (!presenceStarted) {
+      long start = presenceStart;
+      if (start == PENDING) {
+        // Still registering, which wakes the transport up again once it is done.
+        return;
+      }
+      presenceStarted = true;
+      presenceVersion =
+          start == SNAPSHOT ? state.presence.snapshot(binary, presenceFrames) : start;
+    }
+    presenceVersion = state.presence.catchUp(presenceVersion, binary, presenceFrames);
+    sendPresence();
+    long now = System.nanoTime();
+    for (Room room : rooms.values()) {
+      int count;
+      while ((count = room.drain(connectionId, batch)) > 0) {
+        for (int i = 0; i < count; i++) {
+          EncodedMessage message = batch[i];
+          batch[i] = null;
+          if (message.sequence >= cursor) {
+            cursor = message.sequence + 1;
+          }
+          // Only members of the room ever see its messages, so encrypted messages only reach the
+          // clients that registered their password.
+          if (message.isFor(connectionId) && (sealed || message.message.sealed == null)) {
+            Frame frame = message.retainFrame(binary, compressed);
+            if (frame != null) {
+              send(frame);
+              metrics.deliveryLatency.record(now - message.publishedNanos);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  private void sendPresence() {
+    for (Frame frame : presenceFrames) {
+      send(frame);
+    }
+    presenceFrames.clear();
+  }
+
+  private void send(byte[] frame) {
+    send(Frame.wrap(frame));
+  }
+
+  /** Queues a frame for the transport to write, taking over the caller's reference to it. */
+  private void send(Frame frame) {
+    // The queue may release the frame, so this has to be read first.
+    MessageId id = frame.id();
+    int size = frame.size();
+    OutboundQueue.Offer offer = outbound.offer(frame);
+    if (offer == OutboundQueue.Offer.QUEUED) {
+      metrics.sent(id, size);
+      transport.onQueued();
+      return;
+    }
+    metrics.dropped(id);
+    if (offer == OutboundQueue.Offer.REFUSED) {
+      transport.disconnect();
+    }
+  }
+
+  public synchronized void close() {
+    outbound.close();
+    metrics.closed(this);
+    if (closed) {
+      return;
+    }
+    closed = true;
+    admission.closed();
+    if (isRegistered()) {
+      if (userLimit != null) {
+        admission.leave(username);
+      }
+      EventLog.log(EventLog.Event.DISCONNECTED, connectionId, username);
+      for (String room : rooms.keySet()) {
+        if (!room.equals(Room.LOBBY)) {
+          state.leave(room, connectionId);
+        }
+      }
+      state.deRegister(connectionId);
+    }
+  }
+}
@@ -1,71 +1,274 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class State {
-  private final List<Message> messages = new ArrayList<>();
-  private final HashMap<Integer, Integer> currentConsumption = new HashMap<>();
-  private Set<Integer> lowestConsumerId = new HashSet<>();
-  private final HashMap<Integer, String> userList = new HashMap<>();
-  private final HashSet<UserListener> listeners = new HashSet<>();
-
-  public synchronized void addMessage(Message message) {
-    messages.add(message);
-  }
-
-  public synchronized void registerNewUser(int id, String username, UserListener listener) {
-    currentConsumption.put(id, 0);
-    lowestConsumerId.add(id);
-    userList.put(id, username);
-    for (UserListener listen : listeners) {
-      listen.onNewUser(id, username);
-    }
-    listeners.add(listener);
+  private static final int LOG_CAPACITY = 4096;
+
+  // Every message ever added, kept on disk so it can be replayed to clients that join later.
+  final MessageStore history;
+  // User ids are made from the node in the top byte and a count of its connections, so they are
+  // unique across a cluster.
+  final int nodeId;
+  private final AtomicInteger connectionCount = new AtomicInteger();
+  private volatile Cluster cluster;
+
+  // Every room that has members, each with its own log that is read through a cursor per member
+  // so neither adding nor reading a message takes a lock. The lobby is never removed.
+  private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+  private final Room lobby = new Room(Room.LOBBY, LOG_CAPACITY);
+  // Clients catch up on who joined and left when they are next delivered to.
+  final Presence presence = new Presence();
+  private final Set<MessageListener> messageListeners = new CopyOnWriteArraySet<>();
+  // The clients registered with this node, so they can be checkpointed when it is stopped.
+  private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+  // The clients of the last run that can still resume by their token.
+  private final Map<String, Checkpoint.Entry> resumable = new ConcurrentHashMap<>();
+  // The version of the user list the clients of the last run have once they resume.
+  private volatile long resumedVersion = 0;
+
+  public State() throws IOException {
+    this(new MessageStore(), Cluster.NODE_ID);
+  }
+
+  public State(MessageStore history, int nodeId) {
+    this.history = history;
+    this.nodeId = nodeId;
+    rooms.put(Room.LOBBY, lobby);
+  }
+
+  public int nextConnectionId() {
+    return nodeId << 24 | connectionCount.getAndIncrement();
   }
 
-  public synchronized void deRegister(int id, UserListener listener) {
-    listeners.remove(listener);
-    for (UserListener listen : listeners) {
-      listen.onLostUser(id);
+  int connectionCount() {
+    return connectionCount.get();
+  }
+
+  /**
+   * Carries on from the checkpoint of the last run. Everyone in it counts as connected until they
+   * resume or chat.resume.seconds have passed, and no id of theirs is given out again.
+   */
+  public void restore(Checkpoint checkpoint) {
+    if (checkpoint == null) {
+      return;
     }
-    lowestConsumerId.remove(id);
-    currentConsumption.remove(id);
+    connectionCount.accumulateAndGet(checkpoint.connectionCount, Math::max);
+    for (Checkpoint.Entry entry : checkpoint.entries) {
+      resumable.put(entry.token, entry);
+      presence.add(entry.id, entry.username);
+    }
+    resumedVersion = presence.version();
+    Thread expiry =
+        new Thread(
+            () -> {
+              try {
+                TimeUnit.SECONDS.sleep(Checkpoint.RESUME_SECONDS);
+              } catch (InterruptedException e) {
+                return;
+              }
+              for (Checkpoint.Entry entry : checkpoint.entries) {
+                if (resumable.remove(entry.token) != null && presence.remove(entry.id)) {
+                  wakeListeners();
+                }
+              }
+            },
+            "resume-expiry");
+    expiry.setDaemon(true);
+    expiry.start();
+  }
+
+  /** @return The client of the last run with the token, which can only be resumed once. */
+  Checkpoint.Entry resume(String token) {
+    return resumable.remove(token);
+  }
+
+  long resumedVersion() {
+    return resumedVersion;
   }
 
-  public synchronized HashMap<Integer, String> getUserList() {
-    return userList;
+  /** @return The clients registered with this node. */
+  List<Session> sessions() {
+    return new ArrayList<>(sessions.values());
   }
 
-  public synchronized Optional<Message> getMessage(int id) {
-    if (messages.size() <= currentConsumption.get(id)) {
-      return Optional.empty();
+  void setCluster(Cluster cluster) {
+    this.cluster = cluster;
+  }
+
+  /**
+   * Encodes the message once and makes it available to every member of its room, and every other
+   * node in the cluster. Encrypted messages go to the room of their password hash.
+   */
+  public void addMessage(Message message) {
+    addMessage(message, true);
+  }
+
+  /** Adds a message that a client of another node in the cluster sent. */
+  public void addRelayedMessage(Message message) {
+    addMessage(message, false);
+  }
+
+  private void addMessage(Message message, boolean local) {
+    Room room = rooms.get(Room.of(message));
+    // Nobody else connected is in the room, although later clients might join it.
+    boolean readable = room == lobby || (room != null && room.hasOtherMembers(message.user));
+    EncodedMessage encoded = new EncodedMessage(message);
+    // Stored and given its place in the lobby together so that the history and the live messages
+    // never overlap. It is only published once the lock is released as publishing can wait for
+    // slow clients. Other rooms are joined later on so only have to be published in their own log.
+    long lobbySequence = -1;
+    synchronized (history) {
+      long locked = System.nanoTime();
+      try {
+        encoded.sequence = history.append(encoded.binaryBytes());
+      } catch (IOException e) {
+        System.err.println("Could not store message: " + e.getMessage());
+      }
+      Cluster peers = cluster;
+      if (local && peers != null) {
+        peers.relay(encoded.binaryBytes());
+      }
+      if (room == lobby) {
+        lobbySequence = lobby.claim();
+      }
+      Metrics.shared().lockHold.record(System.nanoTime() - locked);
     }
-    Message message = messages.get(currentConsumption.get(id));
-    currentConsumption.put(id, currentConsumption.get(id) + 1);
-
-    if (lowestConsumerId.contains(id)) {
-      lowestConsumerId.remove(id);
-      if (lowestConsumerId.isEmpty()) {
-        int lowestConsumptionLevel = Integer.MAX_VALUE;
-        lowestConsumerId = new HashSet<>();
-        for (int consumeId = 0; consumeId < currentConsumption.size(); consumeId++) {
-          if (lowestConsumptionLevel > currentConsumption.get(consumeId)) {
-            lowestConsumptionLevel = currentConsumption.get(consumeId);
-            lowestConsumerId = new HashSet<>(List.of(new Integer[] {consumeId}));
-          } else if (lowestConsumptionLevel == currentConsumption.get(consumeId)) {
-            lowestConsumerId.add(consumeId);
+    if (room == lobby) {
+      lobby.publish(lobbySequence, encoded);
+    } else if (!readable) {
+      encoded.release();
+      return;
+    } else {
+      room.publish(encoded);
+    }
+    // Wake the room up so its members can immediately start fetching the message.
+    room.wake(message.user);
+  }
+
+  Room lobby() {
+    return lobby;
+  }
+
+  public void addMessageListener(MessageListener listener) {
+    messageListeners.add(listener);
+  }
+
+  public void removeMessageListener(MessageListener listener) {
+    messageListeners.remove(listener);
+  }
+
+  /**
+   * Adds the session to a room, creating the room if it is the first member.
+   *
+   * @return The room, which the session receives every message sent to from now on.
+   */
+  public Room join(String name, Session session) {
+    return rooms.compute(
+        name,
+        (key, room) -> {
+          room = room == null ? new Room(key, Room.CAPACITY) : room;
+          room.join(session);
+          return room;
+        });
+  }
+
+  /**
+   * Removes the connection from a room, removing the room and releasing its messages if it was the
+   * last member.
+   */
+  public void leave(String name, int id) {
+    rooms.computeIfPresent(
+        name,
+        (key, room) -> {
+          room.leave(id);
+          if (room.isEmpty() && room != lobby) {
+            room.close();
+            return null;
           }
-        }
-        messages.subList(0, lowestConsumptionLevel).clear();
+          return room;
+        });
+  }
 
-        // Made messages smaller so now need to re-normalise to new message size.
-        int finalLowestConsumptionLevel = lowestConsumptionLevel;
-        currentConsumption.replaceAll((k, v) -> v - finalLowestConsumptionLevel);
-      }
+  /**
+   * Adds the session to the lobby and tells everyone it joined.
+   *
+   * @return The sequence number of the first message in the history that the user will receive
+   *     live rather than from a replay.
+   */
+  public synchronized long registerNewUser(Session session) {
+    int id = session.connectionId;
+    String username = session.username;
+    long joinedAt;
+    synchronized (history) {
+      lobby.join(session);
+      joinedAt = history.nextSequence();
+    }
+    sessions.put(id, session);
+    presence.add(id, username);
+    relay(MessageToByte.addUser(id, username));
+    wakeListeners();
+    return joinedAt;
+  }
+
+  public synchronized void deRegister(int id) {
+    sessions.remove(id);
+    lobby.leave(id);
+    presence.remove(id);
+    relay(MessageToByte.removeUser(id));
+    wakeListeners();
+  }
+
+  /** Adds a user connected to another node in the cluster. */
+  public void addRemoteUser(int id, String username) {
+    if (presence.add(id, username)) {
+      wakeListeners();
+    }
+  }
+
+  public void removeRemoteUser(int id) {
+    if (presence.remove(id)) {
+      wakeListeners();
+    }
+  }
+
+  /** Removes every user of a node that left the cluster. */
+  public void removeNode(int node) {
+    if (presence.removeIf(id -> id >>> 24 == node)) {
+      wakeListeners();
+    }
+  }
+
+  /** @return A copy of the users connected to this node. */
+  public HashMap<Integer, String> localUsers() {
+    HashMap<Integer, String> local = presence.users();
+    local.keySet().removeIf(id -> id >>> 24 != nodeId);
+    return local;
+  }
+
+  /** @return A copy of everyone that is connected. */
+  public HashMap<Integer, String> getUserList() {
+    return presence.users();
+  }
+
+  private void relay(byte[] frame) {
+    Cluster peers = cluster;
+    if (peers != null) {
+      peers.relay(ByteBuffer.wrap(frame));
+    }
+  }
+
+  private void wakeListeners() {
+    for (MessageListener listener : messageListeners) {
+      listener.onMessagesAvailable();
     }
-    return Optional.of(message);
   }
 }
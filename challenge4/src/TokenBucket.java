@@ -0,0 +1,32 @@
+/**
+ * Limits how often something can happen to a steady rate while still allowing short bursts. The
+ * bucket holds up to burst tokens, refills at the rate and every action takes one token.
+ */
+public class TokenBucket {
+  private final double tokensPerNano;
+  private final double burst;
+  private double tokens;
+  private long refilledAt = System.nanoTime();
+
+  /**
+   * @param perSecond How many actions are allowed per second on average.
+   * @param burst How many actions are allowed at once after being idle, which starts out full.
+   */
+  public TokenBucket(double perSecond, double burst) {
+    this.tokensPerNano = perSecond / 1e9;
+    this.burst = burst;
+    this.tokens = burst;
+  }
+
+  /** @return Whether there was a token left, which has been taken. */
+  public synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+    refilledAt = now;
+    if (tokens < 1) {
+      return false;
+    }
+    tokens -= 1;
+    return true;
+  }
+}
@@ -0,0 +1,17 @@
+/** How a {@link Session} gets the frames in its outbound queue to the client. */
+public interface Transport {
+  /** Called whenever a frame has been queued, possibly from another thread. */
+  void onQueued();
+
+  /**
+   * Called, possibly from another thread, when one of the session's rooms has new messages for
+   * {@link Session#deliver} to pick up.
+   */
+  void onMessagesAvailable();
+
+  /**
+   * Called when the client has fallen too far behind, or sent something that cannot be served, and
+   * has to be disconnected.
+   */
+  void disconnect();
+}
@@ -0,0 +1,83 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Checks that strings too long for their length prefix are refused instead of corrupting the
+ * frames they are written in. Run it with the server's classes on the class path.
+ */
+public class BinaryCodecTest {
+  public static void main(String[] args) throws Exception {
+    String tooLong = "x".repeat(BinaryCodec.MAX_STRING_BYTES + 1);
+    check(BinaryCodec.fitsShort("x".repeat(BinaryCodec.MAX_STRING_BYTES)), "the longest fits");
+    check(!BinaryCodec.fitsShort(tooLong), "one more byte not to fit");
+    // Two bytes each in UTF-8, so too long even though it has fewer chars than the limit.
+    check(!BinaryCodec.fitsShort("é".repeat(40000)), "the UTF-8 length to count");
+
+    Message message = new Message(1, "hello");
+    message.room = tooLong;
+    check(throwsIllegalArgument(message), "a message with a long room not to be encoded");
+    message.room = null;
+    message.passwordHash = tooLong;
+    check(throwsIllegalArgument(message), "a message with a long hash not to be encoded");
+    try {
+      BinaryCodec.userList(Map.of(1, tooLong));
+      check(false, "a user list with a long username not to be encoded");
+    } catch (IllegalArgumentException expected) {
+    }
+
+    MessageStore history =
+        new MessageStore(Files.createTempDirectory("codec"), 1024 * 1024, 2, 4096);
+    State state = new State(history, 0);
+
+    boolean[] disconnected = new boolean[1];
+    Session longName = session(state, disconnected);
+    longName.onFrame(MessageId.INIT, payload(MessageToByte.init(tooLong)));
+    check(!longName.isRegistered(), "a long username not to register");
+    check(disconnected[0], "a long username to be disconnected");
+
+    // Serialized clients have no length prefix so can send any hash.
+    Session legacy = session(state, new boolean[1]);
+    legacy.onFrame(MessageId.INIT, payload(MessageToByte.init("legacy")));
+    long before = history.nextSequence();
+    legacy.onFrame(
+        MessageId.MESSAGE_RECEIVED, payload(MessageToByte.encrypted(new Message(tooLong, "hi"))));
+    check(history.nextSequence() == before, "a message with a long hash not to be stored");
+    System.out.println("OK");
+  }
+
+  private static boolean throwsIllegalArgument(Message message) {
+    try {
+      BinaryCodec.message(MessageId.MESSAGE_RECEIVED, message);
+      return false;
+    } catch (IllegalArgumentException expected) {
+      return true;
+    }
+  }
+
+  private static Session session(State state, boolean[] disconnected) {
+    return new Session(
+        state.nextConnectionId(),
+        state,
+        "salt",
+        new Transport() {
+          public void onQueued() {}
+
+          public void onMessagesAvailable() {}
+
+          public void disconnect() {
+            disconnected[0] = true;
+          }
+        });
+  }
+
+  private static ByteBuffer payload(byte[] frame) {
+    return ByteBuffer.wrap(frame).position(5);
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/**
+ * Checks that a subscriber that never reads doesn't slow publishing down, and that it skips to the
+ * oldest message still in the log once it reads again. Also checks that clearing a log releases
+ * what is left in it. Run it with the server's classes on the class path.
+ */
+public class BroadcastLogTest {
+  public static void main(String[] args) {
+    BroadcastLog<Long> log = new BroadcastLog<>(64);
+    BroadcastLog.Cursor stalled = log.subscribe();
+    int laps = 1000;
+    long items = (long) log.capacity() * laps;
+    long start = System.nanoTime();
+    for (long i = 0; i < items; i++) {
+      log.publish(i);
+    }
+    long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    // Waiting for the stalled cursor even a millisecond a lap would take a whole second.
+    check(elapsedMillis < laps, "publishing not to wait for the stalled cursor");
+
+    Long[] batch = new Long[log.capacity()];
+    int count = log.drain(stalled, batch);
+    check(count == log.capacity(), "the last capacity items to still be readable");
+    check(batch[0] == items - log.capacity(), "to skip to the oldest item in the log");
+    check(stalled.dropped() == items - log.capacity(), "every overwritten item to be dropped");
+    check(log.drain(stalled, batch) == 0, "the cursor to have caught up");
+
+    long[] released = new long[1];
+    BroadcastLog<Long> room = new BroadcastLog<>(64, item -> released[0] += 1);
+    for (long i = 0; i < 100; i++) {
+      room.publish(i);
+    }
+    check(released[0] == 100 - room.capacity(), "overwritten items to be released");
+    room.clear();
+    check(released[0] == 100, "clearing to release every item still in the log");
+    room.clear();
+    check(released[0] == 100, "items to only be released once");
+    System.out.println("OK");
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that buffers are handed out by size class, so a short frame doesn't take a whole 4 KiB
+ * buffer, and that released buffers are reused. Run it with the server's classes on the class path.
+ */
+public class BufferPoolTest {
+  public static void main(String[] args) {
+    check(BufferPool.acquire(60).capacity() == BufferPool.MIN_SIZE, "the smallest class for 60 B");
+    check(BufferPool.acquire(256).capacity() == 256, "an exact fit to use its own class");
+    check(BufferPool.acquire(257).capacity() == 512, "the next class up for 257 B");
+    check(BufferPool.acquire(3000).capacity() == BufferPool.BUFFER_SIZE, "4 KiB for 3000 B");
+    check(BufferPool.acquire(5000).capacity() == 5000, "big buffers to be allocated to size");
+
+    ByteBuffer small = BufferPool.acquire(100);
+    small.put((byte) 1);
+    BufferPool.release(small);
+    check(BufferPool.acquire(1000) != small, "a small buffer never to be used for a bigger size");
+    ByteBuffer reused = BufferPool.acquire(200);
+    check(reused == small, "a released buffer to be reused for its size class");
+    check(reused.position() == 0 && reused.remaining() == 256, "a reused buffer to be cleared");
+
+    // Buffers that don't match a class are simply left to the garbage collector.
+    BufferPool.release(ByteBuffer.allocate(300));
+    check(BufferPool.acquire(300).capacity() == 512, "odd sized buffers never to be pooled");
+    System.out.println("OK");
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
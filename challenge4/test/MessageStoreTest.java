@@ -0,0 +1,47 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that replaying the history never hands back a sequence number before the one that was
+ * asked for, even when nothing fits in the budget or the sparse index points further back. Run it
+ * with the server's classes on the class path.
+ */
+public class MessageStoreTest {
+  public static void main(String[] args) throws Exception {
+    Path directory = Files.createTempDirectory("store");
+    // Only every 4 KiB is indexed, so asking for message 50 starts scanning well before it.
+    MessageStore history = new MessageStore(directory, 1024 * 1024, 2, 4096);
+    for (int i = 0; i < 100; i++) {
+      history.append(ByteBuffer.wrap(frame(i)));
+    }
+    long to = history.nextSequence();
+    List<Frame> replayed = new ArrayList<>();
+
+    long next = history.replay(50, to, 0, frame -> true, replayed::add);
+    check(next == 50, "a zero budget to carry on from where it was asked to, not " + next);
+    check(replayed.isEmpty(), "nothing to be replayed with a zero budget");
+    next = history.replay(50, to, -100, frame -> true, replayed::add);
+    check(next == 50, "a negative budget to carry on from where it was asked to");
+    next = history.replay(50, 40, 1024, frame -> true, replayed::add);
+    check(next == 40, "never to carry on past the end that was asked for");
+
+    int size = frame(50).length;
+    next = history.replay(50, to, 1, frame -> true, replayed::add);
+    check(next == 51, "a budget of one frame to replay exactly one frame");
+    check(replayed.size() == 1 && replayed.get(0).size() == size, "message 50 to be replayed");
+    System.out.println("OK");
+  }
+
+  private static byte[] frame(int i) {
+    return BinaryCodec.message(MessageId.MESSAGE_RECEIVED, new Message(i, "Message number " + i));
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
@@ -0,0 +1,28 @@
+/**
+ * Checks which names clients can use for rooms, so that a client can't create any room it likes
+ * by pretending a name is a password hash. Run it with the server's classes on the class path.
+ */
+public class RoomTest {
+  public static void main(String[] args) {
+    String salt = BCrypt.gensalt(4);
+    String hash = BCrypt.hashpw("password", salt);
+    check(Room.isPasswordHash(hash, salt), "a hash made with the server's salt to be accepted");
+    String other = BCrypt.hashpw("password", BCrypt.gensalt(4));
+    check(!Room.isPasswordHash(other, salt), "a hash made with another salt to be rejected");
+    check(!Room.isPasswordHash("general", salt), "a plain name to be rejected");
+    check(!Room.isPasswordHash(hash + "x", salt), "a hash with extra characters to be rejected");
+    check(!Room.isPasswordHash(hash.substring(0, 59) + " ", salt), "other characters rejected");
+    check(!Room.isPasswordHash(salt + "a".repeat(70_000), salt), "a huge name to be rejected");
+
+    check(Room.isValidName("general"), "a short name to be a valid room");
+    check(!Room.isValidName(hash), "names starting with $ to be kept for passwords");
+    check(!Room.isValidName("a".repeat(Room.MAX_NAME_BYTES + 1)), "long names to be rejected");
+    System.out.println("OK");
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}
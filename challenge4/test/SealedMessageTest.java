@@ -0,0 +1,72 @@
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that a sealed message without a password hash is neither stored nor able to break the
+ * history replay of later clients. Run it with the server's classes on the class path.
+ */
+public class SealedMessageTest {
+  private static final byte SEALED = 4;
+
+  public static void main(String[] args) throws Exception {
+    Path directory = Files.createTempDirectory("sealed");
+    MessageStore history = new MessageStore(directory, 1024 * 1024, 2, 4096);
+    State state = new State(history, 0);
+
+    ByteBuffer frame = sealedWithoutHash();
+    check(BinaryCodec.messageRoom(frame).equals(Room.LOBBY), "a sealed frame is in the lobby");
+
+    Session sender = join(state, "mallory");
+    long before = history.nextSequence();
+    sender.onFrame(MessageId.MESSAGE_RECEIVED, payload(frame));
+    check(history.nextSequence() == before, "a sealed message without a hash is not stored");
+
+    // Even if one was stored, such as by an older server, replaying it must not fail.
+    history.append(frame.duplicate());
+    Session reader = join(state, "alice");
+    ByteBuffer request = ByteBuffer.allocate(9).put(MessageToByte.HISTORY_LAST).putLong(20);
+    reader.onFrame(MessageId.HISTORY, request.flip());
+    System.out.println("OK");
+  }
+
+  /** @return A whole MESSAGE_RECEIVED frame with only the sealed flag set. */
+  private static ByteBuffer sealedWithoutHash() {
+    byte[] body = new byte[MessageCipher.sealedBytes(8)];
+    // Random looking bytes where a hash's length would be if there was one.
+    Arrays.fill(body, (byte) 0x7f);
+    ByteBuffer frame = ByteBuffer.allocate(5 + 4 + 1 + body.length);
+    frame.putInt(frame.capacity() - 5).put((byte) MessageId.MESSAGE_RECEIVED.ordinal());
+    frame.putInt(0).put(SEALED).put(body);
+    return frame.flip();
+  }
+
+  private static ByteBuffer payload(ByteBuffer frame) {
+    return frame.duplicate().position(5);
+  }
+
+  private static Session join(State state, String username) throws Exception {
+    Session session =
+        new Session(
+            state.nextConnectionId(),
+            state,
+            "salt",
+            new Transport() {
+              public void onQueued() {}
+
+              public void onMessagesAvailable() {}
+
+              public void disconnect() {}
+            });
+    session.onFrame(MessageId.CODEC, ByteBuffer.wrap(new byte[] {BinaryCodec.VERSION, 0}));
+    session.onFrame(MessageId.INIT, payload(ByteBuffer.wrap(MessageToByte.init(username))));
+    return session;
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Expected " + description + ".");
+    }
+  }
+}